@@ -1,11 +1,19 @@
 package waffle;
 
+import static waffle.wafflecore.constants.Constants.*;
+
 public class Config {
     private static int listenPort = -1;
     private static String peerHostName = "-1";
     private static int peerPort = -1;
     private static boolean isMining = false;
     private static boolean isGui = false;
+    private static int finalityDepth = 100; // Forks deeper than this are swept
+    private static long pruneTarget = 0; // Bytes of block and undo data to keep, 0 keeps all
+    private static boolean txIndex = false; // Index confirmed transactions by id
+    private static boolean addressIndex = false; // Index unspent outputs by recipient
+    // Blocks from this timestamp commit to a Merkle root. Every node of a network must agree on it.
+    private static long merkleRootTime = Long.getLong("waffle.merkleRootTime", MERKLE_ROOT_TIME);
 
     public static int getListenPort() {
         return listenPort;
@@ -22,6 +30,21 @@ public class Config {
     public static boolean isGui() {
         return isGui;
     }
+    public static int getFinalityDepth() {
+        return finalityDepth;
+    }
+    public static long getPruneTarget() {
+        return pruneTarget;
+    }
+    public static boolean getTxIndex() {
+        return txIndex;
+    }
+    public static boolean getAddressIndex() {
+        return addressIndex;
+    }
+    public static long getMerkleRootTime() {
+        return merkleRootTime;
+    }
 
     public static void setListenPort(int lPort) {
         listenPort = lPort;
@@ -38,6 +61,21 @@ public class Config {
     public static void setIsGui(boolean gui) {
         isGui = gui;
     }
+    public static void setFinalityDepth(int depth) {
+        finalityDepth = depth;
+    }
+    public static void setPruneTarget(long target) {
+        pruneTarget = target;
+    }
+    public static void setTxIndex(boolean index) {
+        txIndex = index;
+    }
+    public static void setAddressIndex(boolean index) {
+        addressIndex = index;
+    }
+    public static void setMerkleRootTime(long time) {
+        merkleRootTime = time;
+    }
 
     public static boolean isSet() {
         if (listenPort != -1 && !(!"-1".equals(peerHostName) ^ peerPort != -1)) {
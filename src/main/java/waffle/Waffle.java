@@ -16,7 +16,13 @@ class Waffle {
     public static void main(String[] args) {
         WaffleCore core = new WaffleCore();
 
-        if (args.length == 1 && "cli".equals(args[0])) {
+        if (args.length >= 1 && "bench".equals(args[0])) {
+            Benchmark.run(args);
+        } else if (args.length >= 1 && "check".equals(args[0])) {
+            System.exit(Check.run(args));
+        } else if (args.length == 2 && ("export".equals(args[0]) || "import".equals(args[0]))) {
+            WaffleCore.runArchive(args[0], args[1]);
+        } else if (args.length == 1 && "cli".equals(args[0])) {
             Scanner scan = new Scanner(System.in);
 
             Config.setIsGui(false);
@@ -37,6 +43,18 @@ class Waffle {
             boolean mine = scan.nextBoolean();
             Config.setIsMining(mine);
 
+            System.out.print("Prune target in MB (keep all -> 0): ");
+            long pruneTarget = scan.nextLong();
+            Config.setPruneTarget(pruneTarget * 1024 * 1024);
+
+            System.out.print("Index transactions? (true or false): ");
+            boolean txIndex = scan.nextBoolean();
+            Config.setTxIndex(txIndex);
+
+            System.out.print("Index addresses? (true or false): ");
+            boolean addressIndex = scan.nextBoolean();
+            Config.setAddressIndex(addressIndex);
+
             System.out.println("Started running.");
             core.run();
         } else {
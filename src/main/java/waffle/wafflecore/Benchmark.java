@@ -0,0 +1,884 @@
+package waffle.wafflecore;
+
+import static waffle.wafflecore.constants.Constants.*;
+import static waffle.wafflecore.message.type.InventoryMessageType.*;
+import waffle.wafflecore.message.Envelope;
+import waffle.wafflecore.message.InventoryMessage;
+import waffle.wafflecore.model.*;
+import waffle.wafflecore.util.BlockUtil;
+import waffle.wafflecore.util.BlockChainUtil;
+import waffle.wafflecore.util.TransactionUtil;
+import waffle.wafflecore.util.ByteArrayWrapper;
+import waffle.wafflecore.util.MessageUtil;
+import waffle.wafflecore.util.WireCodec;
+import waffle.wafflecore.tool.Logger;
+import waffle.wafflecore.store.BlockStore;
+import waffle.wafflecore.store.ChainArchive;
+import waffle.wafflecore.store.MemoryPoolFile;
+import waffle.wafflecore.store.UtxoCache;
+import waffle.wafflecore.store.UtxoSet;
+import waffle.wafflecore.util.Hasher;
+import waffle.wafflecore.util.FrameCompressor;
+import waffle.wafflecore.util.MerkleTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Micro benchmarks run with `waffle bench <name> [args...]`.
+ */
+public class Benchmark {
+    private static Logger logger = Logger.getInstance();
+
+    public static void run(String[] args) {
+        String name = args.length > 1 ? args[1] : "";
+
+        switch (name) {
+            case "heap":
+                heap(intArg(args, 2, 2000), intArg(args, 3, 20));
+                break;
+            case "utxo":
+                utxo(intArg(args, 2, 1000000));
+                break;
+            case "compress":
+                compress(args.length > 2 ? args[2] : null);
+                break;
+            case "mempool":
+                mempool(intArg(args, 2, 100000));
+                break;
+            case "sighash":
+                sighash(intArg(args, 2, 100000));
+                break;
+            case "merkle":
+                merkle(intArg(args, 2, 4000));
+                break;
+            case "codec":
+                codec(intArg(args, 2, 200), intArg(args, 3, 20));
+                break;
+            case "replay":
+                replay(args.length > 2 ? args[2] : "1000", intArg(args, 3, 20));
+                break;
+            default:
+                logger.log("Usage: bench heap [blocks] [txs per block]");
+                logger.log("       bench utxo [outputs]");
+                logger.log("       bench compress [blocks dir]");
+                logger.log("       bench mempool [transactions]");
+                logger.log("       bench sighash [transactions]");
+                logger.log("       bench merkle [txs per block]");
+                logger.log("       bench codec [blocks] [txs per block]");
+                logger.log("       bench replay [exported chain file | blocks] [txs per block]");
+                break;
+        }
+    }
+
+    /**
+     *  Retained bytes per connected block, with and without compaction.
+     *  Block bytes kept in Inventory are counted in both cases.
+     */
+    public static void heap(int blockCount, int txCount) {
+        Random random = new Random(0);
+        ArrayList<byte[]> inventory = new ArrayList<byte[]>();
+        for (int i = 0; i < blockCount; i++) {
+            inventory.add(sampleBlock(random, txCount));
+        }
+
+        long base = usedHeap();
+        ArrayList<Block> connected = new ArrayList<Block>();
+        for (byte[] data : inventory) {
+            connected.add(connect(data));
+        }
+        long full = usedHeap() - base;
+
+        connected.forEach(x -> x.compact());
+        long compacted = usedHeap() - base;
+
+        long stored = 0;
+        for (byte[] data : inventory) {
+            stored += data.length;
+        }
+
+        logger.log("Blocks: " + blockCount + ", txs/block: " + txCount);
+        logger.log("Inventory bytes/block: " + stored / blockCount);
+        logger.log("Before compaction bytes/block: " + (stored + full) / blockCount);
+        logger.log("After compaction bytes/block: " + (stored + compacted) / blockCount);
+    }
+
+    /**
+     *  Memory and lookup speed of UtxoSet against a heap map of outputs.
+     */
+    public static void utxo(int count) {
+        Random random = new Random(0);
+        byte[][] txIds = new byte[count][];
+        byte[][] recipients = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            txIds[i] = randomBytes(random, HASH_LENGTH);
+            recipients[i] = randomBytes(random, HASH_LENGTH);
+        }
+
+        // Heap map keyed by outpoint, holding outputs as runTransaction creates them.
+        long base = usedHeap();
+        ConcurrentHashMap<ByteArrayWrapper, TransactionOutput> map = new ConcurrentHashMap<ByteArrayWrapper, TransactionOutput>();
+        for (int i = 0; i < count; i++) {
+            byte[] key = Arrays.copyOf(txIds[i], HASH_LENGTH + 2);
+            key[HASH_LENGTH + 1] = (byte) (i % 4);
+            map.put(new ByteArrayWrapper(key), new TransactionOutput(
+                ByteArrayWrapper.copyOf(txIds[i]), (short) (i % 4), recipients[i].clone(), i));
+        }
+        long mapBytes = usedHeap() - base;
+        map = null;
+
+        base = usedHeap();
+        UtxoSet set = new UtxoSet();
+        for (int i = 0; i < count; i++) {
+            set.put(new TransactionOutput(new ByteArrayWrapper(txIds[i]), (short) (i % 4), recipients[i], i));
+        }
+        long setHeapBytes = usedHeap() - base;
+
+        long start = System.nanoTime();
+        long found = 0;
+        for (int i = 0; i < count; i++) {
+            if (set.get(new ByteArrayWrapper(txIds[i]), (short) (i % 4)) != null) {
+                found++;
+            }
+        }
+        double lookupNanos = (double) (System.nanoTime() - start) / count;
+
+        logger.log("Outputs: " + count + ", found: " + found);
+        logger.log("Heap map bytes/output: " + mapBytes / count);
+        logger.log("UtxoSet heap bytes/output: " + Math.max(0, setHeapBytes) / count);
+        logger.log("UtxoSet off-heap bytes/output: " + set.getAllocatedBytes() / count);
+        logger.log(String.format("UtxoSet lookup: %.0f ns", lookupNanos));
+    }
+
+    /**
+     *  Size ratio and decode speed of deflated block storage, measured on
+     *  blocks stored in dir. Sample blocks are used if dir is not given or
+     *  has none. A store is opened for writing, so do not point dir at the
+     *  blocks of a running node.
+     */
+    public static void compress(String dir) {
+        ArrayList<byte[]> chain = new ArrayList<byte[]>();
+        if (dir != null) {
+            BlockStore source = new BlockStore(dir);
+            for (ByteArrayWrapper id : source.getIds()) {
+                chain.add(source.get(id));
+            }
+        }
+        if (chain.size() == 0) {
+            Random random = new Random(0);
+            for (int i = 0; i < 1000; i++) {
+                chain.add(sampleBlock(random, 20));
+            }
+        }
+
+        File tmp;
+        try {
+            tmp = Files.createTempDirectory("waffle-bench").toFile();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        BlockStore raw = new BlockStore(new File(tmp, "raw").getPath());
+        BlockStore deflated = new BlockStore(new File(tmp, "deflated").getPath(), BlockUtil.compressionDictionary());
+
+        ArrayList<ByteArrayWrapper> ids = new ArrayList<ByteArrayWrapper>();
+        long rawBytes = 0;
+        for (byte[] data : chain) {
+            ByteArrayWrapper id = ByteArrayWrapper.copyOf(Hasher.doubleSha256(data));
+            ids.add(id);
+            raw.put(id, data);
+            deflated.put(id, data);
+            rawBytes += data.length;
+        }
+
+        int rounds = Math.max(1, (int) (200L * 1024 * 1024 / rawBytes));
+        double rawSpeed = readSpeed(raw, ids, rounds, rawBytes);
+        double deflatedSpeed = readSpeed(deflated, ids, rounds, rawBytes);
+
+        logger.log("Blocks: " + chain.size() + ", bytes: " + rawBytes);
+        logger.log(String.format("Stored bytes: raw %d, deflated %d, ratio %.2f",
+            raw.getDiskSize(), deflated.getDiskSize(), (double) raw.getDiskSize() / deflated.getDiskSize()));
+        logger.log(String.format("Read: raw %.0f MB/s, deflated %.0f MB/s", rawSpeed, deflatedSpeed));
+
+        for (File file : tmp.listFiles()) {
+            for (File child : file.listFiles()) {
+                child.delete();
+            }
+            file.delete();
+        }
+        tmp.delete();
+    }
+
+    /**
+     *  Blocks/s, transactions/s, per block latency and peak heap of
+     *  connecting a chain from a cold state, the way blocks from peers are.
+     *  The chain is read from a file written by `waffle export`, or
+     *  generated if source is a block count.
+     */
+    public static void replay(String source, int txCount) {
+        Genesis genesis = new Genesis();
+        genesis.prepareGenesis();
+        Block genesisBlock = Genesis.getGenesisBlock();
+
+        ArrayList<byte[]> chain = new ArrayList<byte[]>();
+        File file = new File(source);
+        if (file.isFile()) {
+            ChainArchive.Reader reader = ChainArchive.open(file);
+            if (reader == null) {
+                logger.log("Not a chain archive: " + file);
+                return;
+            }
+            try {
+                byte[] data;
+                while ((data = reader.next()) != null) {
+                    chain.add(data);
+                }
+                reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+        } else {
+            chain = sampleChain(Integer.parseInt(source), txCount);
+        }
+
+        // Fresh stores and caches, away from the node's data directory.
+        File tmp;
+        try {
+            tmp = Files.createTempDirectory("waffle-bench").toFile();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        Inventory.open(new File(tmp, "blocks").getPath(), new File(tmp, "undo").getPath(), new File(tmp, "headers").getPath());
+        Inventory.transactions = new TransactionCache(TX_CACHE_SIZE);
+        WaffleCore.setExecutor(Executors.newCachedThreadPool());
+
+        BlockChainExecutor blockChainExecutor = new BlockChainExecutor();
+        blockChainExecutor.setInventory(new Inventory());
+        blockChainExecutor.setMiner(new Miner());
+        blockChainExecutor.setUtxos(new UtxoCache());
+        Inventory.blocks.put(genesisBlock.getId(), genesisBlock.getOriginal());
+
+        // Blocks are logged as they connect; keep the console out of the numbers.
+        PrintStream console = muteConsole();
+
+        usedHeap();
+        resetPeakHeap();
+        long[] latencies = new long[chain.size()];
+        long txs = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < chain.size(); i++) {
+            long blockStart = System.nanoTime();
+            byte[] data = chain.get(i);
+            Block block = BlockUtil.deserialize(data);
+            Inventory.blocks.put(block.getId(), data);
+            blockChainExecutor.processBlock(data, block.getPreviousHash());
+            latencies[i] = System.nanoTime() - blockStart;
+            txs += block.getTransactions().size();
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        long peakHeap = peakHeap();
+        System.setOut(console);
+
+        Arrays.sort(latencies);
+        int height = blockChainExecutor.getLatestBlock().getHeight();
+        logger.log("Blocks: " + chain.size() + ", txs: " + txs + ", height reached: " + height);
+        logger.log(String.format("Replay: %.2f s, %.1f blocks/s, %.1f txs/s", secs, chain.size() / secs, txs / secs));
+        logger.log(String.format("Block latency: p50 %.2f ms, p99 %.2f ms",
+            percentile(latencies, 50) / 1e6, percentile(latencies, 99) / 1e6));
+        logger.log("Peak heap: " + peakHeap / (1024 * 1024) + " MB");
+
+        WaffleCore.getExecutor().shutdownNow();
+        deleteTree(tmp);
+    }
+
+    /**
+     *  Time to write and reload a memory pool of count transactions, each
+     *  spending an output of the UTXO set.
+     */
+    public static void mempool(int count) {
+        Genesis genesis = new Genesis();
+        genesis.prepareGenesis();
+
+        Random random = new Random(0);
+        byte[] publicKey = randomBytes(random, 32);
+        byte[] address = BlockChainUtil.toAddress(publicKey);
+        long time = System.currentTimeMillis();
+
+        UtxoCache utxos = new UtxoCache();
+        ArrayList<byte[]> txs = new ArrayList<byte[]>();
+        for (int i = 0; i < count; i++) {
+            TransactionOutput txo = new TransactionOutput(
+                ByteArrayWrapper.copyOf(randomBytes(random, HASH_LENGTH)), (short) 0, address, 1000);
+            utxos.put(txo);
+
+            Transaction tx = new Transaction();
+            tx.setTimestamp(time);
+            tx.setInEntries(new ArrayList<InEntry>(Arrays.asList(
+                new InEntry(txo.getTransactionId(), txo.getOutIndex(), publicKey, randomBytes(random, 64)))));
+            tx.setOutEntries(new ArrayList<OutEntry>(Arrays.asList(new OutEntry(address, 999))));
+            txs.add(TransactionUtil.serialize(tx));
+        }
+
+        File file;
+        try {
+            file = Files.createTempFile("waffle-bench", ".dat").toFile();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        long start = System.nanoTime();
+        MemoryPoolFile.write(file, txs);
+        double writeMillis = (System.nanoTime() - start) / 1e6;
+
+        // Cold caches and an empty pool.
+        Inventory.memoryPool = new TreeMap<ByteArrayWrapper, Transaction>();
+        Inventory.transactions = new TransactionCache(TX_CACHE_SIZE);
+        BlockChainExecutor blockChainExecutor = new BlockChainExecutor();
+        blockChainExecutor.setInventory(new Inventory());
+        blockChainExecutor.setUtxos(utxos);
+
+        PrintStream console = muteConsole();
+        start = System.nanoTime();
+        int loaded = blockChainExecutor.loadMemoryPool(file);
+        double loadMillis = (System.nanoTime() - start) / 1e6;
+        System.setOut(console);
+
+        logger.log("Transactions: " + count + ", file bytes: " + file.length());
+        logger.log(String.format("Write: %.0f ms", writeMillis));
+        logger.log(String.format("Reload: %.0f ms, %d loaded, %.0f txs/s", loadMillis, loaded, loaded * 1000 / loadMillis));
+        file.delete();
+    }
+
+    /**
+     *  Sign hashes by re-serializing parsed transactions, as done before,
+     *  against generating the signing JSON straight into the digest.
+     */
+    public static void sighash(int count) {
+        Random random = new Random(0);
+        ArrayList<byte[]> txs = new ArrayList<byte[]>();
+        for (int i = 0; i < count; i++) {
+            ArrayList<InEntry> inEntries = new ArrayList<InEntry>();
+            for (int j = 0; j <= i % 3; j++) {
+                inEntries.add(new InEntry(ByteArrayWrapper.copyOf(randomBytes(random, HASH_LENGTH)), (short) j,
+                    randomBytes(random, 32), randomBytes(random, 64)));
+            }
+            Transaction tx = new Transaction();
+            tx.setTimestamp(random.nextLong());
+            tx.setInEntries(inEntries);
+            tx.setOutEntries(new ArrayList<OutEntry>(Arrays.asList(
+                new OutEntry(randomBytes(random, HASH_LENGTH), random.nextInt(1000000)),
+                new OutEntry(randomBytes(random, HASH_LENGTH), random.nextInt(1000000)))));
+            txs.add(TransactionUtil.serialize(tx));
+        }
+
+        // Both start from parsed transactions, as callers have them.
+        ArrayList<Transaction> parsed = new ArrayList<Transaction>();
+        for (byte[] data : txs) {
+            Transaction tx = TransactionUtil.deserialize(data);
+            if (!Arrays.equals(legacySignHash(tx), TransactionUtil.computeSignHash(tx))) {
+                logger.log("Sign hashes differ:" + tx.getId());
+                return;
+            }
+            parsed.add(tx);
+        }
+
+        int rounds = 5;
+        long legacy = 0;
+        long streaming = 0;
+        for (int round = -1; round < rounds; round++) {
+            long start = System.nanoTime();
+            for (Transaction tx : parsed) {
+                legacySignHash(tx);
+            }
+            long legacyTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (Transaction tx : parsed) {
+                TransactionUtil.computeSignHash(tx);
+            }
+            long streamingTime = System.nanoTime() - start;
+
+            if (round >= 0) {
+                legacy += legacyTime;
+                streaming += streamingTime;
+            }
+        }
+
+        double total = (double) count * rounds;
+        logger.log("Transactions: " + count + ", sign hashes identical");
+        logger.log(String.format("Re-serialize: %.2f us/tx", legacy / 1e3 / total));
+        logger.log(String.format("Streaming:    %.2f us/tx", streaming / 1e3 / total));
+    }
+
+    private static byte[] legacySignHash(Transaction tx) {
+        Transaction copy = TransactionUtil.deserialize(tx.getOriginal());
+        for (InEntry in : copy.getInEntries()) {
+            in.setPublicKey(null);
+            in.setSignature(null);
+        }
+        return Hasher.doubleSha256(TransactionUtil.serialize(copy));
+    }
+
+    /**
+     *  Transaction root of one block: legacy string root against the Merkle
+     *  tree built at once, built by appends as a miner would, and proofs.
+     */
+    public static void merkle(int count) {
+        Random random = new Random(0);
+        ArrayList<ByteArrayWrapper> txIds = new ArrayList<ByteArrayWrapper>();
+        for (int i = 0; i < count; i++) {
+            txIds.add(ByteArrayWrapper.copyOf(randomBytes(random, HASH_LENGTH)));
+        }
+
+        if (!Arrays.equals(legacyRootHash(txIds), BlockChainUtil.legacyRootHashTransactionIds(txIds))) {
+            logger.log("Legacy roots differ");
+            return;
+        }
+        MerkleTree appended = new MerkleTree();
+        for (ByteArrayWrapper txId : txIds) {
+            appended.append(txId.getBytes());
+        }
+        byte[] root = MerkleTree.computeRoot(txIds);
+        if (!Arrays.equals(root, appended.getRoot())) {
+            logger.log("Merkle roots differ");
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            if (!MerkleTree.verifyProof(txIds.get(i).getBytes(), i, count, appended.getProof(i), root)) {
+                logger.log("Proof failed at " + i);
+                return;
+            }
+        }
+
+        int rounds = 5;
+        long[] times = new long[4];
+        for (int round = -1; round < rounds; round++) {
+            long[] t = new long[5];
+            t[0] = System.nanoTime();
+            legacyRootHash(txIds);
+            t[1] = System.nanoTime();
+            BlockChainUtil.legacyRootHashTransactionIds(txIds);
+            t[2] = System.nanoTime();
+            MerkleTree.computeRoot(txIds);
+            t[3] = System.nanoTime();
+            MerkleTree tree = new MerkleTree();
+            for (ByteArrayWrapper txId : txIds) {
+                tree.append(txId.getBytes());
+            }
+            t[4] = System.nanoTime();
+
+            if (round >= 0) {
+                for (int i = 0; i < times.length; i++) {
+                    times[i] += t[i + 1] - t[i];
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            MerkleTree.verifyProof(txIds.get(i).getBytes(), i, count, appended.getProof(i), root);
+        }
+        long proofTime = System.nanoTime() - start;
+
+        logger.log("Transactions: " + count + ", roots and proofs check");
+        logger.log(String.format("Legacy string:  %.3f ms", times[0] / 1e6 / rounds));
+        logger.log(String.format("Legacy linear:  %.3f ms", times[1] / 1e6 / rounds));
+        logger.log(String.format("Merkle build:   %.3f ms", times[2] / 1e6 / rounds));
+        logger.log(String.format("Merkle appends: %.3f ms", times[3] / 1e6 / rounds));
+        logger.log(String.format("Proof + verify: %.2f us", proofTime / 1e3 / count));
+        logger.log("Proof length:   " + appended.getProof(0).size() + " hashes");
+    }
+
+    private static byte[] legacyRootHash(ArrayList<ByteArrayWrapper> txIds) {
+        String ids = "";
+        for (ByteArrayWrapper txId : txIds) {
+            ids += txId.toString();
+        }
+        return Hasher.doubleSha256(ids.getBytes());
+    }
+
+    /**
+     *  Size and speed of blocks sent as JSON and as binary frames.
+     */
+    public static void codec(int blockCount, int txCount) {
+        Genesis genesis = new Genesis();
+        genesis.prepareGenesis();
+
+        ArrayList<Envelope> envs = new ArrayList<Envelope>();
+        for (byte[] data : sampleChain(blockCount, txCount)) {
+            envs.add(new InventoryMessage(CONTENT, BlockUtil.computeBlockId(data), true, data).packToEnvelope());
+        }
+
+        long jsonBytes = 0;
+        long binaryBytes = 0;
+        for (Envelope env : envs) {
+            jsonBytes += MessageUtil.serialize(env).length;
+            byte[] frame = WireCodec.encode(env);
+            if (frame == null) {
+                logger.log("Block not encodable in binary.");
+                return;
+            }
+            binaryBytes += frame.length;
+        }
+
+        // Warm up, then time a few rounds of each.
+        int rounds = 5;
+        double[] json = new double[2];
+        double[] binary = new double[2];
+        for (int round = -1; round < rounds; round++) {
+            long start = System.nanoTime();
+            ArrayList<byte[]> encoded = new ArrayList<byte[]>();
+            for (Envelope env : envs) {
+                encoded.add(MessageUtil.serialize(env));
+            }
+            long encodeTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (byte[] data : encoded) {
+                MessageUtil.deserialize(data);
+            }
+            long decodeTime = System.nanoTime() - start;
+            if (round >= 0) {
+                json[0] += encodeTime;
+                json[1] += decodeTime;
+            }
+
+            start = System.nanoTime();
+            encoded.clear();
+            for (Envelope env : envs) {
+                encoded.add(WireCodec.encode(env));
+            }
+            encodeTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (byte[] frame : encoded) {
+                WireCodec.decode(ByteBuffer.wrap(frame, WireCodec.FRAME_HEADER_SIZE, frame.length - WireCodec.FRAME_HEADER_SIZE).slice());
+            }
+            decodeTime = System.nanoTime() - start;
+            if (round >= 0) {
+                binary[0] += encodeTime;
+                binary[1] += decodeTime;
+            }
+        }
+
+        double total = (double) envs.size() * rounds;
+        logger.log("Blocks: " + envs.size() + ", txs per block: " + txCount);
+        logger.log(String.format("JSON:   %d bytes, encode %.0f blocks/s, decode %.0f blocks/s",
+            jsonBytes, total * 1e9 / json[0], total * 1e9 / json[1]));
+        logger.log(String.format("Binary: %d bytes (%.0f%%), encode %.0f blocks/s, decode %.0f blocks/s",
+            binaryBytes, binaryBytes * 100.0 / jsonBytes, total * 1e9 / binary[0], total * 1e9 / binary[1]));
+
+        // End to end: sent, read and its transactions parsed as checkBlock
+        // gets them, each round with an empty transaction cache.
+        double[] received = new double[2];
+        for (int round = -1; round < rounds; round++) {
+            for (int form = 0; form < 2; form++) {
+                TransactionCache cache = new TransactionCache(envs.size() * (txCount + 1));
+                long start = System.nanoTime();
+                for (Envelope env : envs) {
+                    InventoryMessage msg;
+                    Block block;
+                    if (form == 0) {
+                        msg = (InventoryMessage) MessageUtil.deserialize(MessageUtil.serialize(env)).getPayload();
+                        block = BlockUtil.deserialize(msg.getData());
+                    } else {
+                        byte[] frame = WireCodec.encode(env);
+                        msg = (InventoryMessage) WireCodec.decode(ByteBuffer.wrap(frame, WireCodec.FRAME_HEADER_SIZE, frame.length - WireCodec.FRAME_HEADER_SIZE).slice()).getPayload();
+                        block = msg.getBlock();
+                        msg.getTransactions().forEach(x -> cache.put(x));
+                    }
+                    for (byte[] tx : block.getTransactions()) {
+                        cache.get(tx);
+                    }
+                }
+                if (round >= 0) {
+                    received[form] += System.nanoTime() - start;
+                }
+            }
+        }
+        logger.log(String.format("End to end: JSON %.0f blocks/s, binary %.0f blocks/s",
+            total * 1e9 / received[0], total * 1e9 / received[1]));
+
+        // Each form deflated as it would go to a peer announcing FEATURE_DEFLATE.
+        for (int form = 0; form < 2; form++) {
+            FrameCompressor compressor = new FrameCompressor();
+            long plainBytes = 0;
+            long sentBytes = 0;
+            for (int round = -1; round < rounds; round++) {
+                for (Envelope env : envs) {
+                    byte[] plain = form == 0 ? MessageUtil.serialize(env) : WireCodec.encode(env);
+                    byte[] sent = compressor.deflate(plain);
+                    if (sent != plain) {
+                        int length = compressor.inflate(sent, WireCodec.FRAME_HEADER_SIZE, sent.length - WireCodec.FRAME_HEADER_SIZE);
+                        if (!Arrays.equals(plain, Arrays.copyOf(compressor.getInflateBuffer(), Math.max(length, 0)))) {
+                            logger.log("Inflated frame differs.");
+                            return;
+                        }
+                    }
+                    if (round == 0) {
+                        plainBytes += plain.length;
+                        sentBytes += sent.length;
+                    }
+                }
+            }
+
+            double frames = (double) envs.size() * (rounds + 1);
+            logger.log(String.format("%s deflated: %d bytes (%.0f%% of JSON), deflate %.0f us/block, inflate %.0f us/block, %d frames",
+                form == 0 ? "JSON" : "Binary", sentBytes, sentBytes * 100.0 / jsonBytes,
+                compressor.getDeflateNanos() / 1e3 / frames, compressor.getInflateNanos() / 1e3 / frames,
+                compressor.getFramesDeflated()));
+            compressor.close();
+        }
+    }
+
+    /**
+     *  Valid chain on top of genesis. Transactions spend outputs of earlier
+     *  blocks so connecting it goes through the UTXO set. Blocks are spaced
+     *  so difficulty stays at its initial value.
+     */
+    static ArrayList<byte[]> sampleChain(int blockCount, int txCount) {
+        byte[] publicKey = new byte[32];
+        Arrays.fill(publicKey, (byte) 7);
+        byte[] address = BlockChainUtil.toAddress(publicKey);
+        long spacing = TimeUnit.SECONDS.toMillis(BlockUtil.blockInterval) *
+            (BlockUtil.blocksToConsiderDifficulty - 1) / BlockUtil.blocksToConsiderDifficulty;
+
+        ArrayList<byte[]> chain = new ArrayList<byte[]>();
+        ArrayList<Block> ancestors = new ArrayList<Block>(); // latest first
+        ancestors.add(Genesis.getGenesisBlock());
+        ArrayList<TransactionOutput> spendable = new ArrayList<TransactionOutput>();
+        for (int height = 1; height <= blockCount; height++) {
+            Block prev = ancestors.get(0);
+            long time = prev.getTimestamp() + spacing;
+
+            // Split outputs until there are enough to fill a block, then pass them on.
+            ArrayList<byte[]> txs = new ArrayList<byte[]>();
+            ArrayList<TransactionOutput> next = new ArrayList<TransactionOutput>();
+            boolean split = spendable.size() < txCount - 1;
+            for (TransactionOutput txo : spendable) {
+                long amount = txo.getAmount() - 1; // 1 for fee
+                if (amount < 2 || txs.size() >= txCount - 1) {
+                    continue;
+                }
+
+                Transaction tx = new Transaction();
+                tx.setTimestamp(time);
+                tx.setInEntries(new ArrayList<InEntry>(Arrays.asList(
+                    new InEntry(txo.getTransactionId(), txo.getOutIndex(), publicKey, new byte[64]))));
+                ArrayList<OutEntry> outEntries = new ArrayList<OutEntry>();
+                if (split) {
+                    outEntries.add(new OutEntry(address, amount / 2));
+                    outEntries.add(new OutEntry(address, amount - amount / 2));
+                } else {
+                    outEntries.add(new OutEntry(address, amount));
+                }
+                tx.setOutEntries(outEntries);
+
+                byte[] data = TransactionUtil.serialize(tx);
+                ByteArrayWrapper txId = TransactionUtil.computeTransactionId(data);
+                for (short i = 0; i < outEntries.size(); i++) {
+                    next.add(new TransactionOutput(txId, i, address, outEntries.get(i).getAmount()));
+                }
+                txs.add(data);
+            }
+
+            Transaction coinbase = new Transaction();
+            coinbase.setTimestamp(time);
+            coinbase.setInEntries(new ArrayList<InEntry>());
+            long reward = BlockUtil.getCoinbaseAmount(height) + txs.size();
+            coinbase.setOutEntries(new ArrayList<OutEntry>(Arrays.asList(new OutEntry(address, reward))));
+            byte[] coinbaseData = TransactionUtil.serialize(coinbase);
+            ByteArrayWrapper coinbaseId = TransactionUtil.computeTransactionId(coinbaseData);
+            txs.add(0, coinbaseData);
+            next.add(new TransactionOutput(coinbaseId, (short) 0, address, reward));
+            spendable = next;
+
+            ArrayList<ByteArrayWrapper> txIds = new ArrayList<ByteArrayWrapper>();
+            for (byte[] tx : txs) {
+                txIds.add(TransactionUtil.computeTransactionId(tx));
+            }
+
+            Block block = new Block();
+            block.setPreviousHash(prev.getId());
+            block.setDifficulty(BlockUtil.getNextDifficulty(ancestors));
+            block.setTimestamp(time);
+            block.setTransactionRootHash(BlockChainUtil.rootHashTransactionIds(txIds, time));
+
+            ByteArrayWrapper id;
+            long nonce = 0;
+            do {
+                block.setNonce(nonce++);
+                id = BlockUtil.computeBlockId(block);
+            } while (BlockUtil.difficultyOf(id) < block.getDifficulty());
+            block.setId(id);
+            block.setTransactionIds(txIds);
+            block.setTransactions(txs);
+
+            chain.add(BlockUtil.serialize(block));
+            ancestors.add(0, block);
+            if (ancestors.size() > BlockUtil.blocksToConsiderDifficulty + 1) {
+                ancestors.remove(ancestors.size() - 1);
+            }
+        }
+        return chain;
+    }
+
+    // Block bytes read per second through get().
+    private static double readSpeed(BlockStore store, ArrayList<ByteArrayWrapper> ids, int rounds, long bytes) {
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (ByteArrayWrapper id : ids) {
+                store.get(id);
+            }
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        return bytes * rounds / secs / (1024 * 1024);
+    }
+
+    // Same state as a block which went through processBlock and runBlock.
+    private static Block connect(byte[] data) {
+        Block block = BlockUtil.deserialize(data);
+
+        ArrayList<Transaction> parsedTxs = new ArrayList<Transaction>();
+        ArrayList<TransactionOutput> spent = new ArrayList<TransactionOutput>();
+        for (byte[] txData : block.getTransactions()) {
+            Transaction tx = TransactionUtil.deserialize(txData);
+
+            ArrayList<TransactionOutput> redeemed = new ArrayList<TransactionOutput>();
+            for (InEntry in : tx.getInEntries()) {
+                redeemed.add(new TransactionOutput(in.getTransactionId(), in.getOutEntryIndex(), in.getPublicKey(), 1));
+            }
+            ArrayList<TransactionOutput> generated = new ArrayList<TransactionOutput>();
+            short outIndex = 0;
+            for (OutEntry out : tx.getOutEntries()) {
+                generated.add(new TransactionOutput(tx.getId(), outIndex++, out.getRecipientHash(), out.getAmount()));
+            }
+
+            tx.setExecInfo(new TransactionExecInfo(redeemed.size() == 0, redeemed, generated, 0));
+            spent.addAll(redeemed);
+            parsedTxs.add(tx);
+        }
+
+        block.setParsedTransactions(parsedTxs);
+        block.setSpentOutputs(spent);
+        return block;
+    }
+
+    static byte[] sampleBlock(Random random, int txCount) {
+        ArrayList<ByteArrayWrapper> txIds = new ArrayList<ByteArrayWrapper>();
+        ArrayList<byte[]> txs = new ArrayList<byte[]>();
+        for (int i = 0; i < txCount; i++) {
+            Transaction tx = new Transaction();
+            tx.setTimestamp(System.currentTimeMillis());
+
+            ArrayList<InEntry> inEntries = new ArrayList<InEntry>();
+            if (i != 0) {
+                inEntries.add(new InEntry(
+                    ByteArrayWrapper.copyOf(randomBytes(random, HASH_LENGTH)), (short) 0,
+                    randomBytes(random, 32), randomBytes(random, 64)));
+            }
+            tx.setInEntries(inEntries);
+            tx.setOutEntries(new ArrayList<OutEntry>(Arrays.asList(
+                new OutEntry(randomBytes(random, HASH_LENGTH), 1000),
+                new OutEntry(randomBytes(random, HASH_LENGTH), 2000))));
+
+            byte[] serialized = TransactionUtil.serialize(tx);
+            txIds.add(TransactionUtil.computeTransactionId(serialized));
+            txs.add(serialized);
+        }
+
+        Block block = new Block();
+        block.setPreviousHash(ByteArrayWrapper.copyOf(randomBytes(random, HASH_LENGTH)));
+        block.setDifficulty(Genesis.INITIAL_DIFFICULTY);
+        block.setNonce(random.nextLong());
+        block.setTimestamp(System.currentTimeMillis());
+        block.setTransactionRootHash(BlockChainUtil.rootHashTransactionIds(txIds, block.getTimestamp()));
+        block.setTransactionIds(txIds);
+        block.setTransactions(txs);
+
+        return BlockUtil.serialize(block);
+    }
+
+    static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    // Sum of peaks of heap pools since resetPeakHeap.
+    static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    // Node code logs per block and transaction; returns the console to restore.
+    static PrintStream muteConsole() {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+        }));
+        return console;
+    }
+
+    static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    static int intArg(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (Exception e) {}
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,160 @@
+package waffle.wafflecore;
+
+import static waffle.wafflecore.constants.Constants.*;
+import waffle.wafflecore.store.BlockStore;
+import waffle.wafflecore.util.ByteArrayWrapper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Block bytes served to peers.
+ *  Recently accepted and read-ahead blocks are kept on heap in a byte
+ *  bounded LRU. Other blocks are served straight from the store, mapped
+ *  unless stored deflated, and are not cached, so a peer syncing old
+ *  blocks does not push hot ones out.
+ *  Requests of one peer following write order trigger read-ahead of the
+ *  next blocks.
+ */
+public class BlockCache {
+    private BlockStore store;
+    private long capacity;
+    private long size = 0;
+    private LinkedHashMap<ByteArrayWrapper, byte[]> entries = new LinkedHashMap<ByteArrayWrapper, byte[]>(16, 0.75f, true);
+
+    private ConcurrentHashMap<String, ByteArrayWrapper> expectedIds = new ConcurrentHashMap<String, ByteArrayWrapper>(); // next id of each peer
+    private Set<String> readingAhead = ConcurrentHashMap.newKeySet(); // peers with a read-ahead running
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong bytesServed = new AtomicLong();
+    private AtomicLong readAheads = new AtomicLong();
+
+    public BlockCache(BlockStore store, long capacity) {
+        this.store = store;
+        this.capacity = capacity;
+    }
+
+    /**
+     *  Read-only block bytes for peer, or null if the block is not stored.
+     */
+    public ByteBuffer get(ByteArrayWrapper id, String peer) {
+        byte[] cached;
+        synchronized (this) {
+            cached = entries.get(id);
+        }
+
+        ByteBuffer data;
+        if (cached != null) {
+            hits.incrementAndGet();
+            data = ByteBuffer.wrap(cached).asReadOnlyBuffer();
+        } else {
+            data = store.getBuffer(id);
+            if (data == null) {
+                return null;
+            }
+            misses.incrementAndGet();
+        }
+        bytesServed.addAndGet(data.remaining());
+
+        if (id.equals(expectedIds.get(peer))) {
+            readAhead(id, peer);
+        }
+        ArrayList<ByteArrayWrapper> next = store.nextIds(id, 1);
+        if (next.isEmpty()) {
+            expectedIds.remove(peer);
+        } else {
+            expectedIds.put(peer, next.get(0));
+        }
+
+        return data;
+    }
+
+    /**
+     *  Forget read position of a disconnected peer.
+     */
+    public void removePeer(String peer) {
+        expectedIds.remove(peer);
+    }
+
+    /**
+     *  Store block and keep it hot; peers ask for new blocks first.
+     */
+    public void put(ByteArrayWrapper id, byte[] data) {
+        store.put(id, data);
+        cache(id, data);
+    }
+
+    synchronized public void remove(ByteArrayWrapper id) {
+        byte[] data = entries.remove(id);
+        if (data != null) {
+            size -= data.length;
+        }
+    }
+
+    synchronized private void cache(ByteArrayWrapper id, byte[] data) {
+        if (data.length > capacity || entries.containsKey(id)) {
+            return;
+        }
+
+        entries.put(id, data);
+        size += data.length;
+
+        Iterator<Map.Entry<ByteArrayWrapper, byte[]>> it = entries.entrySet().iterator();
+        while (size > capacity && it.hasNext()) {
+            size -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    // Copy blocks after id to heap in background. One read-ahead per peer at a time.
+    private void readAhead(ByteArrayWrapper id, String peer) {
+        ExecutorService executor = WaffleCore.getExecutor();
+        if (executor == null || !readingAhead.add(peer)) {
+            return;
+        }
+
+        executor.submit(() -> {
+            try {
+                for (ByteArrayWrapper next : store.nextIds(id, BLOCK_READ_AHEAD)) {
+                    synchronized (this) {
+                        if (entries.containsKey(next)) {
+                            continue;
+                        }
+                    }
+                    byte[] data = store.get(next);
+                    if (data != null) {
+                        cache(next, data);
+                        readAheads.incrementAndGet();
+                    }
+                }
+            } finally {
+                readingAhead.remove(peer);
+            }
+        });
+    }
+
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    @Override
+    public String toString() {
+        synchronized (this) {
+            return String.format("Block cache: size=%d bytes=%d hits=%d misses=%d rate=%.2f served=%d read-ahead=%d",
+                entries.size(), size, hits.get(), misses.get(), getHitRate(), bytesServed.get(), readAheads.get());
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package waffle.wafflecore;
 
+import static waffle.wafflecore.constants.Constants.*;
 import waffle.wafflecore.WaffleCore;
 import waffle.wafflecore.model.*;
 import waffle.wafflecore.util.BlockChainUtil;
@@ -9,14 +10,33 @@ import waffle.wafflecore.util.EccService;
 import waffle.wafflecore.tool.SystemUtil;
 import waffle.wafflecore.tool.Logger;
 import waffle.wafflecore.Genesis;
+import waffle.wafflecore.store.UtxoCache;
+import waffle.wafflecore.store.ChainSnapshot;
+import waffle.wafflecore.store.TransactionIndex;
+import waffle.wafflecore.store.AddressIndex;
+import waffle.wafflecore.store.ChainArchive;
+import waffle.wafflecore.store.MemoryPoolFile;
 import waffle.wafflecore.util.ByteArrayWrapper;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Callable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.stream.Collectors;
 
 class BlockChainExecutor {
     private Logger logger = Logger.getInstance();
@@ -27,7 +47,9 @@ class BlockChainExecutor {
     public ConcurrentHashMap<ByteArrayWrapper, Block> blocks = new ConcurrentHashMap<ByteArrayWrapper, Block>();
     // key: ancestor block id / value: floating block ids
     private ConcurrentHashMap<ByteArrayWrapper, ArrayList<ByteArrayWrapper>> floatingBlocks = new ConcurrentHashMap<ByteArrayWrapper, ArrayList<ByteArrayWrapper>>();
-    private ConcurrentHashMap<ByteArrayWrapper, TransactionOutput> utxos = new ConcurrentHashMap<ByteArrayWrapper, TransactionOutput>();
+    private UtxoCache utxos = new UtxoCache();
+    private TransactionIndex txIndex; // null unless enabled
+    private AddressIndex addressIndex; // null unless enabled
 
     private Block latest;
 
@@ -36,9 +58,18 @@ class BlockChainExecutor {
         blocks.put(latest.getId(), latest);
     }
 
-    synchronized public void processBlock(byte[] data, ByteArrayWrapper prevId) {
-        Block blk = BlockUtil.deserialize(data);
+    public void processBlock(byte[] data, ByteArrayWrapper prevId) {
+        processBlock(BlockUtil.deserialize(data), prevId);
+    }
+
+    public void processBlock(ByteBuffer data, ByteArrayWrapper prevId) {
+        processBlock(BlockUtil.deserialize(data), prevId);
+    }
 
+    /**
+     *  Connect an already decoded block. Its id must be set.
+     */
+    synchronized public void processBlock(Block blk, ByteArrayWrapper prevId) {
         Block prevBlock = blocks.get(prevId);
         if (prevBlock == null) {
             // When previous block was not found, the block is put into floating block.
@@ -60,10 +91,19 @@ class BlockChainExecutor {
         // If block's total difficulty did not surpass latest's,
         // process later.
         if (latest.getTotalDifficulty() >= blk.getTotalDifficulty()) {
+            blk.compact();
             checkFloatingBlocks(blk.getId());
             return;
         }
 
+        if (switchTo(blk)) {
+            checkFloatingBlocks(blk.getId());
+        }
+    }
+
+    // Reorganize chain so that blk becomes latest. Returns false if
+    // some block failed to run and original chain was restored.
+    private boolean switchTo(Block blk) {
         Block fork = BlockChainUtil.lowestCommonAncestor(latest, blk, blocks);
 
         // Once revert chain to fork.
@@ -74,8 +114,16 @@ class BlockChainExecutor {
                 break;
             }
             revertingChain.add(block);
-            revert(block);
         }
+
+        // Pruned blocks have no body or undo data left to revert with.
+        for (Block block : revertingChain) {
+            if (!inventory.blocks.containsKey(block.getId())) {
+                logger.log("Cannot reorganize below pruned block " + block.getHeight());
+                return false;
+            }
+        }
+        revertingChain.forEach(x -> revert(x));
         // Then apply chain of received block.
         ArrayList<Block> applyingChain = new ArrayList<Block>();
         ArrayList<Block> ancestorsFromBlk = BlockChainUtil.ancestors(blk, blocks);
@@ -111,10 +159,13 @@ class BlockChainExecutor {
             for (Block block : revertingChain) {
                 apply(block);
             }
-            return;
+            applyingChain.forEach(x -> x.compact());
+            flushIfNeeded();
+            return false;
         }
 
-        checkFloatingBlocks(blk.getId());
+        flushIfNeeded();
+        return true;
     }
 
     // Validation and adding parameters to block.
@@ -122,11 +173,14 @@ class BlockChainExecutor {
         String idStr = block.getId().toString().substring(0, 7);
         logger.log("Run block:" + idStr);
 
-        if (block.getParsedTransactions() != null) {
+        if (block.getSpentOutputs() != null) {
             return;
         }
+        if (block.getTransactions() == null) {
+            loadBody(block);
+        }
 
-        byte[] rootTxHash = BlockChainUtil.rootHashTransactionIds(block.getTransactionIds());
+        byte[] rootTxHash = BlockChainUtil.rootHashTransactionIds(block);
         ArrayList<Block> prevBlocks = BlockChainUtil.ancestors(block, blocks);
         prevBlocks.remove(0); // Remove the current block.
         double difficulty = BlockUtil.getNextDifficulty(prevBlocks);
@@ -150,8 +204,8 @@ class BlockChainExecutor {
         ArrayList<ByteArrayWrapper> txIds = block.getTransactionIds();
         ArrayList<Transaction> parsedTxs = new ArrayList<Transaction>();
         for (int i = 0; i < txs.size(); i++) {
-            Transaction tx = TransactionUtil.deserialize(txs.get(i));
-            if (!tx.getId().equals(txIds.get(i))) {
+            Transaction tx = inventory.transactions.get(txs.get(i));
+            if (tx == null || !tx.getId().equals(txIds.get(i))) {
                 throw new IllegalArgumentException();
             }
             parsedTxs.add(tx);
@@ -171,6 +225,7 @@ class BlockChainExecutor {
         runTransaction(parsedTxs.get(0), block.getTimestamp(), coinbase, null);
         block.setHeight(latest.getHeight() + 1);
         block.setParsedTransactions(parsedTxs);
+        block.setSpentOutputs(spentTxos);
         block.setTotalDifficulty(latest.getTotalDifficulty() + block.getDifficulty());
     }
 
@@ -179,43 +234,44 @@ class BlockChainExecutor {
         String idStr = tx.getId().toString().substring(0, 7);
         logger.log("Run Transaction:" + idStr);
 
+        // Fields are read from the compact view; no entry objects are built.
+        TransactionView view = TransactionUtil.viewOf(tx);
+        if (view.getInCount() < 0 || view.getOutCount() < 0) {
+            throw new IllegalArgumentException();
+        }
         if (tx.getTimestamp() > blockTime ||
-            !(coinbase == 0 ^ tx.getInEntries().size() == 0)) {
+            !(coinbase == 0 ^ view.getInCount() == 0)) {
             throw new IllegalArgumentException();
         }
 
         // Validity check for in-entries.
         long inSum = coinbase;
         ArrayList<TransactionOutput> redeemed = new ArrayList<TransactionOutput>();
-        byte[] signHash = TransactionUtil.getTransactionSignHash(tx.getOriginal());
-        ArrayList<InEntry> inEntries = tx.getInEntries();
-        for (InEntry in : inEntries) {
+        byte[] signHash = inventory.transactions.getSignHash(tx);
+        for (int i = 0; i < view.getInCount(); i++) {
             // Verify signature.
-            boolean isVerified = EccService.verify(signHash, in.getSignature(), in.getPublicKey());
-            TransactionOutput txo = new TransactionOutput();
-            txo.setTransactionId(in.getTransactionId());
-            txo.setOutIndex(in.getOutEntryIndex());
+            ByteBuffer publicKey = view.getInPublicKey(i);
+            boolean isVerified = EccService.verify(signHash, view.getInSignature(i), publicKey);
 
             // Check if transaction output is unspent.
             boolean isUnspent = true;
             if (spentTxos != null) {
                 for (TransactionOutput spent : spentTxos) {
-                    if (spent.getTransactionId().equals(txo.getTransactionId())) {
+                    if (view.spends(i, spent)) {
                         isUnspent = false;
                     }
                 }
             }
 
-            txo = utxos.get(txo.getTransactionId());
-            boolean isRedeemable = false;
-            if (txo == null) {
-                isUnspent = false;
-            } else {
-                // Check recipient address.
-                byte[] addr = BlockChainUtil.toAddress(in.getPublicKey());
-                isRedeemable = txo.getRecipient().equals(addr);
+            TransactionOutput txo = utxos.get(view, i);
+            if (txo == null || publicKey == null) {
+                throw new IllegalArgumentException();
             }
 
+            // Check recipient address.
+            byte[] addr = BlockChainUtil.toAddress(publicKey);
+            boolean isRedeemable = Arrays.equals(txo.getRecipient(), addr);
+
             inSum += txo.getAmount();
             if (!isVerified || !isUnspent || !isRedeemable) {
                 throw new IllegalArgumentException();
@@ -225,18 +281,19 @@ class BlockChainExecutor {
         }
 
         long outSum = 0;
-        short outIndex = 0;
-        ArrayList<OutEntry> outEntries = tx.getOutEntries();
         ArrayList<TransactionOutput> generated = new ArrayList<TransactionOutput>();
-        for (OutEntry out : outEntries) {
-            if (out.getRecipientHash() == null || out.getRecipientHash().length == 0 || out.getAmount() <= 0) {
+        for (int i = 0; i < view.getOutCount(); i++) {
+            long amount = view.getOutAmount(i);
+            // Stricter than the original rule, which took any non-empty
+            // recipient: UtxoSet keeps fixed size records, so a recipient
+            // must be an address, HASH_LENGTH bytes as toAddress makes it.
+            if (view.getOutRecipientLength(i) != HASH_LENGTH || amount <= 0) {
                 throw new IllegalArgumentException();
             }
 
-            outSum += out.getAmount();
+            outSum += amount;
 
-            generated.add(new TransactionOutput(tx.getId(), outIndex, out.getRecipientHash(), out.getAmount()));
-            outIndex++;
+            generated.add(new TransactionOutput(tx.getId(), (short) i, view.copyOutRecipient(i), amount));
         }
 
         if (outSum > inSum) {
@@ -251,7 +308,7 @@ class BlockChainExecutor {
         logger.log("Applying block " + block.getHeight() + ":" + idStr);
         logger.log(block.toJson());
 
-        ArrayList<Transaction> txs = block.getParsedTransactions();
+        ArrayList<Transaction> txs = loadTransactions(block);
         ArrayList<ByteArrayWrapper> txIds = new ArrayList<ByteArrayWrapper>();
         for (Transaction tx : txs) {
             if (tx.getExecInfo() != null && !tx.getExecInfo().getCoinbase()) {
@@ -266,11 +323,23 @@ class BlockChainExecutor {
         }
 
         for (Transaction tx : txs) {
-            tx.getExecInfo().getRedeemedOutputs().forEach(x -> utxos.remove(x.getTransactionId()));
-            tx.getExecInfo().getGeneratedOutputs().forEach(x -> utxos.put(x.getTransactionId(), x));
+            tx.getExecInfo().getRedeemedOutputs().forEach(x -> utxos.remove(x));
+            tx.getExecInfo().getGeneratedOutputs().forEach(x -> utxos.put(x));
+            if (addressIndex != null) {
+                tx.getExecInfo().getRedeemedOutputs().forEach(x -> addressIndex.remove(x));
+                tx.getExecInfo().getGeneratedOutputs().forEach(x -> addressIndex.add(x));
+            }
+        }
+        inventory.undo.put(block.getId(), BlockUtil.serializeSpentOutputs(block.getSpentOutputs()));
+        // Restore links the chain from headers, so a damaged body cannot break it.
+        inventory.headers.put(block.getId(), BlockUtil.serializeHeader(block));
+        utxos.blockConnected(block.getId());
+        if (txIndex != null) {
+            txIndex.add(block.getId(), idsOf(txs));
         }
 
         latest = block;
+        block.compact();
 
         ExecutorService executor = WaffleCore.getExecutor();
         executor.submit(new Callable<Void>() {
@@ -286,10 +355,12 @@ class BlockChainExecutor {
         String idStr = block.getId().toString().substring(0, 7);
         logger.log("Revert block " + block.getHeight() + ":" + idStr);
 
-        ArrayList<Transaction> txs = block.getParsedTransactions();
         ArrayList<Transaction> txls = new ArrayList<Transaction>();
 
-        if (txs != null) {
+        // Blocks which failed to run have no undo data and changed nothing.
+        if (block.getSpentOutputs() != null) {
+            ArrayList<Transaction> txs = loadTransactions(block);
+
             for (Transaction tx : txs) {
                 if (!tx.getExecInfo().getCoinbase()) {
                     txls.add(tx);
@@ -303,12 +374,21 @@ class BlockChainExecutor {
             }
 
             for (Transaction tx : txs) {
-                tx.getExecInfo().getRedeemedOutputs().forEach(x -> utxos.put(x.getTransactionId(), x));
-                tx.getExecInfo().getGeneratedOutputs().forEach(x -> utxos.remove(x.getTransactionId()));
+                tx.getExecInfo().getRedeemedOutputs().forEach(x -> utxos.put(x));
+                tx.getExecInfo().getGeneratedOutputs().forEach(x -> utxos.remove(x));
+                if (addressIndex != null) {
+                    tx.getExecInfo().getGeneratedOutputs().forEach(x -> addressIndex.remove(x));
+                    tx.getExecInfo().getRedeemedOutputs().forEach(x -> addressIndex.add(x));
+                }
+            }
+            utxos.blockDisconnected(block.getId());
+            if (txIndex != null) {
+                txIndex.remove(idsOf(txs));
             }
         }
 
         latest = blocks.get(block.getPreviousHash());
+        block.compact();
 
         ExecutorService executor = WaffleCore.getExecutor();
         executor.submit(new Callable<Void>() {
@@ -326,9 +406,9 @@ class BlockChainExecutor {
             return;
         }
         for (ByteArrayWrapper floatingBlockId : pendingBlocks) {
-            byte[] blockData;
+            ByteBuffer blockData;
 
-            blockData = inventory.blocks.get(floatingBlockId);
+            blockData = inventory.blocks.getBuffer(floatingBlockId);
             if (blockData == null) {
                 continue;
             }
@@ -340,7 +420,7 @@ class BlockChainExecutor {
     public void purgeBlock(ByteArrayWrapper id) {
         Block block = blocks.get(id);
         if (block != null) {
-            if (block.getParsedTransactions() == null || block.getParsedTransactions().size() == 0) {
+            if (block.getSpentOutputs() == null) {
                 return;
             }
             blocks.remove(id);
@@ -355,10 +435,689 @@ class BlockChainExecutor {
         inventory.blocks.remove(id);
     }
 
+    // Restore transactions of a compacted block from inventory bytes.
+    private void loadBody(Block block) {
+        ByteBuffer data = inventory.blocks.getBuffer(block.getId());
+        if (data == null) {
+            throw new IllegalStateException("Block body not found.");
+        }
+
+        Block full = BlockUtil.deserialize(data);
+        block.setTransactionIds(full.getTransactionIds());
+        block.setTransactions(full.getTransactions());
+    }
+
+    private static ArrayList<ByteArrayWrapper> idsOf(ArrayList<Transaction> txs) {
+        ArrayList<ByteArrayWrapper> ids = new ArrayList<ByteArrayWrapper>();
+        txs.forEach(x -> ids.add(x.getId()));
+        return ids;
+    }
+
+    // Parsed transactions with exec info. For compacted blocks they are
+    // rebuilt from body and undo data.
+    private ArrayList<Transaction> loadTransactions(Block block) {
+        if (block.getParsedTransactions() != null) {
+            return block.getParsedTransactions();
+        }
+        if (block.getTransactions() == null) {
+            loadBody(block);
+        }
+
+        Iterator<TransactionOutput> spent = block.getSpentOutputs().iterator();
+        ArrayList<Transaction> txs = new ArrayList<Transaction>();
+        for (byte[] data : block.getTransactions()) {
+            Transaction tx = inventory.transactions.get(data);
+            TransactionView view = TransactionUtil.viewOf(tx);
+
+            ArrayList<TransactionOutput> redeemed = new ArrayList<TransactionOutput>();
+            for (int i = 0; i < view.getInCount(); i++) {
+                redeemed.add(spent.next());
+            }
+
+            ArrayList<TransactionOutput> generated = new ArrayList<TransactionOutput>();
+            for (int i = 0; i < view.getOutCount(); i++) {
+                generated.add(new TransactionOutput(tx.getId(), (short) i, view.copyOutRecipient(i), view.getOutAmount(i)));
+            }
+
+            boolean coinbase = view.getInCount() == 0;
+            tx.setExecInfo(new TransactionExecInfo(coinbase, redeemed, generated, 0));
+            txs.add(tx);
+        }
+
+        return txs;
+    }
+
+    /**
+     *  Remove side branch blocks whose fork point is more than depth
+     *  blocks below the tip, together with blocks floating on them.
+     */
+    synchronized public int sweepStaleForks(int depth) {
+        HashSet<ByteArrayWrapper> active = new HashSet<ByteArrayWrapper>();
+        for (Block block : BlockChainUtil.ancestors(latest, blocks)) {
+            active.add(block.getId());
+        }
+
+        // key: block id / value: height of fork point on active chain
+        HashMap<ByteArrayWrapper, Integer> forkHeights = new HashMap<ByteArrayWrapper, Integer>();
+        ArrayList<ByteArrayWrapper> stale = new ArrayList<ByteArrayWrapper>();
+        for (Block block : blocks.values()) {
+            if (active.contains(block.getId())) {
+                continue;
+            }
+
+            ArrayList<ByteArrayWrapper> path = new ArrayList<ByteArrayWrapper>();
+            Block cur = block;
+            Integer forkHeight = null;
+            while (cur != null) {
+                if (active.contains(cur.getId())) {
+                    forkHeight = cur.getHeight();
+                    break;
+                }
+                forkHeight = forkHeights.get(cur.getId());
+                if (forkHeight != null) {
+                    break;
+                }
+                path.add(cur.getId());
+                cur = blocks.get(cur.getPreviousHash());
+            }
+            // Branch is detached from active chain. Treat it as forked at genesis.
+            if (forkHeight == null) {
+                forkHeight = 0;
+            }
+            for (ByteArrayWrapper id : path) {
+                forkHeights.put(id, forkHeight);
+            }
+
+            if (latest.getHeight() - forkHeight > depth) {
+                stale.add(block.getId());
+            }
+        }
+
+        for (ByteArrayWrapper id : stale) {
+            removeBlock(id);
+        }
+        if (stale.size() > 0) {
+            logger.log("Swept " + stale.size() + " stale fork blocks.");
+        }
+
+        return stale.size();
+    }
+
+    private void removeBlock(ByteArrayWrapper id) {
+        blocks.remove(id);
+        inventory.blocks.remove(id);
+        inventory.blockCache.remove(id);
+        inventory.undo.remove(id);
+        inventory.headers.remove(id);
+
+        ArrayList<ByteArrayWrapper> blockIds = floatingBlocks.remove(id);
+        if (blockIds != null) {
+            blockIds.forEach(x -> removeBlock(x));
+        }
+    }
+
+    /**
+     *  Restore chain from the block store, undo data and the UTXO database
+     *  without running transactions. Headers in the snapshot spare parsing
+     *  stored blocks, and its outputs stand in for an unusable database.
+     *  Returns false when neither matches stored blocks; the database is
+     *  then cleared for a full replay.
+     */
+    synchronized public boolean restore() {
+        long start = System.currentTimeMillis();
+        ByteArrayWrapper tipId = utxos.getTipId();
+        boolean usable = tipId != null && inventory.blocks.containsKey(tipId);
+
+        ChainSnapshot snapshot = ChainSnapshot.read(new File(SNAPSHOT_FILE), WaffleCore.getExecutor(), !usable);
+        if (!usable) {
+            if (snapshot == null || !inventory.blocks.containsKey(snapshot.getTipId())) {
+                utxos.clear();
+                return false;
+            }
+            tipId = snapshot.getTipId();
+        }
+
+        HashMap<ByteArrayWrapper, Block> headers = new HashMap<ByteArrayWrapper, Block>();
+        if (snapshot != null) {
+            snapshot.getBlocks().forEach(x -> headers.put(x.getId(), x));
+        }
+
+        // Headers of stored blocks with undo data for those applied before.
+        // key: previous block id / value: blocks built on it
+        // Headers kept for applied and pruned blocks come first; a body is
+        // read only for a block without one.
+        for (ByteArrayWrapper id : inventory.headers.getIds()) {
+            if (!headers.containsKey(id)) {
+                headers.put(id, BlockUtil.deserializeHeader(inventory.headers.getBuffer(id)));
+            }
+        }
+        LinkedHashSet<ByteArrayWrapper> stored = new LinkedHashSet<ByteArrayWrapper>(inventory.headers.getIds());
+        stored.addAll(inventory.blocks.getIds());
+
+        HashMap<ByteArrayWrapper, ArrayList<Block>> children = new HashMap<ByteArrayWrapper, ArrayList<Block>>();
+        for (ByteArrayWrapper id : stored) {
+            if (blocks.containsKey(id)) {
+                continue;
+            }
+
+            // Only headers are read; bodies are loaded when a block is needed.
+            // A header which does not hash to its id is damaged and left out.
+            Block block = headers.get(id);
+            if (block == null) {
+                ByteBuffer data = inventory.blocks.getBuffer(id);
+                block = data == null ? null : BlockUtil.readHeader(data);
+                if (block == null || !block.getId().equals(id)) {
+                    continue;
+                }
+            }
+
+            ByteBuffer undo = inventory.undo.getBuffer(id);
+            if (undo != null) {
+                block.setSpentOutputs(BlockUtil.deserializeSpentOutputs(undo));
+            }
+
+            ArrayList<Block> siblings = children.get(block.getPreviousHash());
+            if (siblings == null) {
+                siblings = new ArrayList<Block>();
+                children.put(block.getPreviousHash(), siblings);
+            }
+            siblings.add(block);
+        }
+
+        // Link blocks from genesis to set height and total difficulty.
+        HashMap<ByteArrayWrapper, Block> linked = new HashMap<ByteArrayWrapper, Block>();
+        ArrayList<Block> queue = new ArrayList<Block>(blocks.values());
+        for (int i = 0; i < queue.size(); i++) {
+            Block parent = queue.get(i);
+            ArrayList<Block> next = children.remove(parent.getId());
+            if (next == null) {
+                continue;
+            }
+            for (Block block : next) {
+                block.setHeight(parent.getHeight() + 1);
+                block.setTotalDifficulty(block.getDifficulty() + parent.getTotalDifficulty());
+                linked.put(block.getId(), block);
+                queue.add(block);
+            }
+        }
+
+        Block tip = linked.containsKey(tipId) ? linked.get(tipId) : blocks.get(tipId);
+        if (tip == null) {
+            utxos.clear();
+            return false;
+        }
+
+        if (!usable) {
+            utxos.clear();
+            snapshot.getOutputs().forEach(chunk -> chunk.forEach(x -> utxos.put(x)));
+        }
+
+        blocks.putAll(linked);
+        children.forEach((prevId, orphans) -> {
+            ArrayList<ByteArrayWrapper> ids = new ArrayList<ByteArrayWrapper>();
+            orphans.forEach(x -> ids.add(x.getId()));
+            floatingBlocks.put(prevId, ids);
+        });
+        latest = tip;
+        if (!usable) {
+            flush();
+        }
+        logger.log("Restored chain at height " + latest.getHeight() + " with " + blocks.size() + " blocks in " +
+            (System.currentTimeMillis() - start) + " ms" + (usable ? "." : " from snapshot."));
+
+        // Blocks stored after last flush may form a better chain.
+        Block best = latest;
+        for (Block block : blocks.values()) {
+            if (block.getTotalDifficulty() > best.getTotalDifficulty()) {
+                best = block;
+            }
+        }
+        if (best != latest) {
+            switchTo(best);
+        }
+
+        return true;
+    }
+
+    /**
+     *  Write headers, tip and UTXO set to file. The chain lock is held
+     *  only while headers are copied and a UTXO view is taken; outputs
+     *  are encoded and the file written after.
+     */
+    public void writeSnapshot(File file) {
+        ByteArrayWrapper tipId;
+        int height;
+        byte[] headers;
+        UtxoCache.View view;
+        synchronized (this) {
+            tipId = latest.getId();
+            height = latest.getHeight();
+            headers = ChainSnapshot.encodeHeaders(blocks.values());
+            view = utxos.view();
+        }
+
+        ArrayList<byte[]> chunks;
+        try {
+            chunks = ChainSnapshot.encodeOutputs(view);
+        } finally {
+            view.close();
+        }
+
+        ChainSnapshot.write(file, tipId, headers, chunks);
+        logger.log("Snapshot written at height " + height + ".");
+    }
+
+    /**
+     *  Delete the oldest block and undo segments until both fit in target
+     *  bytes. Only blocks more than depth below the tip are pruned, and
+     *  their headers are kept. Returns number of blocks pruned.
+     */
+    synchronized public int prune(long target, int depth) {
+        if (target <= 0 || diskSize() <= target) {
+            return 0;
+        }
+
+        // Committed tip must not need pruned blocks to catch up after a crash.
+        flush();
+
+        int limit = latest.getHeight() - depth;
+        int pruned = 0;
+        for (int i = 0; i < inventory.blocks.getSegmentCount() - 1 && diskSize() > target; i++) {
+            ArrayList<ByteArrayWrapper> ids = inventory.blocks.getIds(i);
+            if (ids == null) {
+                continue;
+            }
+            if (!isPrunable(ids, limit)) {
+                break;
+            }
+
+            for (ByteArrayWrapper id : ids) {
+                Block block = blocks.get(id);
+                if (block != null) {
+                    inventory.headers.put(id, BlockUtil.serializeHeader(block));
+                    if (block.getSpentOutputs() != null) {
+                        block.setSpentOutputs(new ArrayList<TransactionOutput>());
+                    }
+                }
+            }
+            inventory.headers.sync();
+            inventory.blocks.deleteSegment(i);
+            ids.forEach(x -> inventory.blockCache.remove(x));
+            pruned += ids.size();
+        }
+
+        // Undo segments go once every block in them was pruned.
+        for (int i = 0; i < inventory.undo.getSegmentCount() - 1; i++) {
+            ArrayList<ByteArrayWrapper> ids = inventory.undo.getIds(i);
+            if (ids == null) {
+                continue;
+            }
+            if (ids.stream().anyMatch(x -> inventory.blocks.containsKey(x))) {
+                break;
+            }
+            inventory.undo.deleteSegment(i);
+        }
+
+        if (pruned > 0) {
+            logger.log("Pruned " + pruned + " blocks below height " + limit + ", " + diskSize() + " bytes stored.");
+        }
+        return pruned;
+    }
+
+    private boolean isPrunable(ArrayList<ByteArrayWrapper> ids, int limit) {
+        for (ByteArrayWrapper id : ids) {
+            Block block = blocks.get(id);
+            if (block != null && block.getHeight() > limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long diskSize() {
+        return inventory.blocks.getDiskSize() + inventory.undo.getDiskSize();
+    }
+
+    /**
+     *  Bring the transaction index in line with the active chain when it
+     *  was not complete at the current tip, e.g. when it was just enabled
+     *  or the node stopped without a flush. Blocks are parsed in parallel.
+     *  Pruned blocks are skipped.
+     */
+    synchronized public void buildTxIndex() {
+        if (txIndex == null || latest.getId().equals(txIndex.getTipId())) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        ArrayList<Block> chain = BlockChainUtil.ancestors(latest, blocks);
+        HashSet<ByteArrayWrapper> active = new HashSet<ByteArrayWrapper>();
+        chain.forEach(x -> active.add(x.getId()));
+
+        // Drop entries of blocks reverted while the index was not maintained.
+        for (ByteArrayWrapper txId : txIndex.getIds()) {
+            TransactionIndex.Entry entry = txIndex.get(txId);
+            if (entry != null && !active.contains(entry.getBlockId())) {
+                txIndex.remove(new ArrayList<ByteArrayWrapper>(Arrays.asList(txId)));
+            }
+        }
+
+        chain.parallelStream().forEach(block -> {
+            if (block.getHeight() == 0) {
+                return;
+            }
+            ByteBuffer data = inventory.blocks.getBuffer(block.getId());
+            Block body = data == null ? null : BlockUtil.deserialize(data);
+            if (body != null) {
+                txIndex.add(block.getId(), body.getTransactionIds());
+            }
+        });
+        txIndex.commit(latest.getId());
+
+        logger.log("Transaction index built: " + txIndex.size() + " entries in " +
+            (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    /**
+     *  Where a confirmed transaction is, or null if it is not indexed.
+     */
+    public TransactionIndex.Entry findTransaction(ByteArrayWrapper txId) {
+        return txIndex == null ? null : txIndex.get(txId);
+    }
+
+    /**
+     *  Confirmed transaction by id, read from its block, or null.
+     */
+    public Transaction getTransaction(ByteArrayWrapper txId) {
+        TransactionIndex.Entry entry = findTransaction(txId);
+        if (entry == null) {
+            return null;
+        }
+
+        ByteBuffer data = inventory.blocks.getBuffer(entry.getBlockId());
+        Block body = data == null ? null : BlockUtil.deserialize(data);
+        if (body == null || entry.getPosition() >= body.getTransactions().size()) {
+            return null;
+        }
+
+        return inventory.transactions.get(body.getTransactions().get(entry.getPosition()));
+    }
+
+    /**
+     *  Load the address index saved at shutdown, or rebuild it from the
+     *  UTXO set if it was saved at another tip.
+     */
+    synchronized public void loadAddressIndex(File file) {
+        if (addressIndex == null) {
+            return;
+        }
+
+        if (!latest.getId().equals(addressIndex.load(file))) {
+            long start = System.currentTimeMillis();
+            addressIndex.clear();
+            utxos.forEach(x -> addressIndex.add(x));
+            logger.log("Address index built: " + addressIndex.size() + " addresses in " +
+                (System.currentTimeMillis() - start) + " ms.");
+        }
+    }
+
+    synchronized public void saveAddressIndex(File file) {
+        if (addressIndex != null) {
+            addressIndex.save(file, latest.getId());
+        }
+    }
+
+    public long getBalance(byte[] address) {
+        return addressIndex == null ? 0 : addressIndex.getBalance(new ByteArrayWrapper(address));
+    }
+
+    /**
+     *  Page of unspent outputs of address. Pass the last output of the
+     *  previous page as after, or null for the first page.
+     */
+    public ArrayList<TransactionOutput> getOutputs(byte[] address, TransactionOutput after, int limit) {
+        if (addressIndex == null) {
+            return new ArrayList<TransactionOutput>();
+        }
+        return addressIndex.getOutputs(new ByteArrayWrapper(address), after, limit, utxos);
+    }
+
+    /**
+     *  Write transactions of the memory pool to file.
+     */
+    public void saveMemoryPool(File file) {
+        ArrayList<byte[]> txs = new ArrayList<byte[]>();
+        synchronized (inventory.memoryPool) {
+            inventory.memoryPool.values().forEach(x -> txs.add(x.getOriginal()));
+        }
+        MemoryPoolFile.write(file, txs);
+    }
+
+    /**
+     *  Put transactions written by saveMemoryPool back into the memory pool.
+     *  They are checked in parallel against the current UTXO set and ones
+     *  which no longer apply are dropped. Returns number of transactions loaded.
+     */
+    synchronized public int loadMemoryPool(File file) {
+        long start = System.currentTimeMillis();
+        ArrayList<byte[]> saved = MemoryPoolFile.read(file);
+        if (saved.isEmpty()) {
+            return 0;
+        }
+
+        long now = System.currentTimeMillis();
+        List<Transaction> valid = saved.parallelStream().map(data -> {
+            Transaction tx = inventory.transactions.get(data);
+            if (tx == null || TransactionUtil.viewOf(tx).getInCount() <= 0) {
+                return null;
+            }
+            try {
+                runTransaction(tx, now, 0, null);
+            } catch (Exception e) {
+                return null;
+            }
+            return tx;
+        }).filter(x -> x != null).collect(Collectors.toList());
+
+        synchronized (inventory.memoryPool) {
+            valid.forEach(x -> inventory.memoryPool.put(x.getId(), x));
+        }
+        logger.log("Loaded " + valid.size() + " of " + saved.size() + " pooled transactions in " +
+            (System.currentTimeMillis() - start) + " ms.");
+        return valid.size();
+    }
+
+    private void flushIfNeeded() {
+        if (utxos.isFlushNeeded()) {
+            flush();
+        }
+    }
+
+    /**
+     *  Commit everything connected since the last flush.
+     *  Block and undo records are synced first so the committed tip
+     *  never names data that is not on disk.
+     */
+    synchronized public void flush() {
+        inventory.blocks.sync();
+        inventory.undo.sync();
+        inventory.headers.sync();
+        utxos.flush(latest.getId());
+        if (txIndex != null) {
+            txIndex.commit(latest.getId());
+        }
+    }
+
+    /**
+     *  Rebuild chain from blocks kept in the block store.
+     *  Blocks are fed in write order; floating blocks take care of the rest.
+     */
+    public void replayStoredBlocks() {
+        ArrayList<ByteArrayWrapper> ids = inventory.blocks.getIds();
+        logger.log("Replaying " + ids.size() + " stored blocks.");
+
+        for (ByteArrayWrapper id : ids) {
+            if (blocks.containsKey(id)) {
+                continue;
+            }
+
+            ByteBuffer data = inventory.blocks.getBuffer(id);
+            if (data == null) {
+                continue;
+            }
+            Block block = BlockUtil.deserialize(data);
+            if (block == null) {
+                continue;
+            }
+            processBlock(block, block.getPreviousHash());
+        }
+    }
+
+    /**
+     *  Write blocks of the active chain after genesis to file.
+     *  Returns number of blocks written, or -1 if some of them are pruned.
+     */
+    public int exportChain(File file) {
+        ArrayList<ByteArrayWrapper> ids = new ArrayList<ByteArrayWrapper>();
+        synchronized (this) {
+            for (Block block : BlockChainUtil.ancestors(latest, blocks)) {
+                if (block.getHeight() > 0) {
+                    ids.add(block.getId());
+                }
+            }
+        }
+        Collections.reverse(ids);
+
+        long start = System.currentTimeMillis();
+        if (!ChainArchive.write(file, ids, inventory.blocks)) {
+            return -1;
+        }
+        logger.log("Exported " + ids.size() + " blocks in " + (System.currentTimeMillis() - start) + " ms.");
+        return ids.size();
+    }
+
+    /**
+     *  Connect blocks of a file written by exportChain.
+     *  Blocks are decoded and checked on all cores while earlier ones are
+     *  connected one by one, in file order. Stops at the first block which
+     *  fails. Returns number of blocks connected, or -1 if file is unreadable.
+     */
+    public int importChain(File file) {
+        ChainArchive.Reader reader = ChainArchive.open(file);
+        if (reader == null) {
+            logger.log("Not a chain archive: " + file);
+            return -1;
+        }
+        logger.log("Importing " + reader.getCount() + " blocks.");
+
+        long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        ArrayDeque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+        int imported = 0;
+        try {
+            while (true) {
+                byte[] data = reader.next();
+                if (data != null) {
+                    pending.add(pool.submit(() -> checkBlock(data)));
+                    if (pending.size() < IMPORT_WINDOW) {
+                        continue;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    break;
+                }
+
+                Block block = pending.poll().get();
+                if (block == null) {
+                    logger.log("Invalid block at " + imported + ", import stopped.");
+                    break;
+                }
+                if (!blocks.containsKey(block.getId())) {
+                    Block tip = latest;
+                    inventory.blocks.put(block.getId(), block.getOriginal());
+                    processBlock(block, block.getPreviousHash());
+
+                    // Heavier than the tip yet not the tip: it failed to run.
+                    if (!blocks.containsKey(block.getId()) ||
+                        block.getTotalDifficulty() > tip.getTotalDifficulty() && latest != block) {
+                        logger.log("Block rejected at " + imported + ", import stopped.");
+                        break;
+                    }
+                }
+
+                imported++;
+                if (imported % IMPORT_LOG_INTERVAL == 0) {
+                    logImportRate(imported, start);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            pending.forEach(x -> x.cancel(true));
+            pool.shutdownNow();
+            try {
+                reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        flush();
+        logImportRate(imported, start);
+        return imported;
+    }
+
+    // Checks which need nothing but the block itself. Transactions are
+    // parsed into the cache so connecting them later is cheap.
+    private Block checkBlock(byte[] data) {
+        Block block = BlockUtil.deserialize(data);
+        if (block == null ||
+            block.getTransactions() == null ||
+            block.getTransactionIds() == null ||
+            block.getTransactions().size() == 0 ||
+            block.getTransactions().size() != block.getTransactionIds().size() ||
+            !Arrays.equals(BlockChainUtil.rootHashTransactionIds(block), block.getTransactionRootHash()) ||
+            block.getDifficulty() > BlockUtil.difficultyOf(block.getId()))
+        {
+            return null;
+        }
+
+        for (int i = 0; i < block.getTransactions().size(); i++) {
+            Transaction tx = inventory.transactions.get(block.getTransactions().get(i));
+            if (tx == null || !tx.getId().equals(block.getTransactionIds().get(i))) {
+                return null;
+            }
+
+            byte[] signHash = inventory.transactions.getSignHash(tx);
+            TransactionView view = TransactionUtil.viewOf(tx);
+            for (int j = 0; j < Math.max(0, view.getInCount()); j++) {
+                if (!EccService.verify(signHash, view.getInSignature(j), view.getInPublicKey(j))) {
+                    return null;
+                }
+            }
+        }
+        return block;
+    }
+
+    private void logImportRate(int imported, long start) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        logger.log(String.format("Imported %d blocks, height %d, %.1f blocks/s.",
+            imported, latest.getHeight(), imported * 1000.0 / elapsed));
+    }
+
+    // Known blocks which can still be served, lowest first so peers
+    // request them in chain order. Pruned ones are left out.
     public ArrayList<ByteArrayWrapper> getKnownBlockIds() {
-        ArrayList<ByteArrayWrapper> blockIds = new ArrayList<ByteArrayWrapper>();
-        blocks.forEach((key, val) -> blockIds.add(key));
+        ArrayList<Block> known = new ArrayList<Block>();
+        blocks.forEach((key, val) -> {
+            if (inventory.blocks.containsKey(key)) {
+                known.add(val);
+            }
+        });
+        known.sort(Comparator.comparingInt(Block::getHeight));
 
+        ArrayList<ByteArrayWrapper> blockIds = new ArrayList<ByteArrayWrapper>();
+        known.forEach(x -> blockIds.add(x.getId()));
         return blockIds;
     }
 
@@ -366,7 +1125,7 @@ class BlockChainExecutor {
     public ConcurrentHashMap<ByteArrayWrapper, Block> getBlocks() {
         return blocks;
     }
-    public ConcurrentHashMap<ByteArrayWrapper, TransactionOutput> getUtxos() {
+    public UtxoCache getUtxos() {
         return utxos;
     }
     public Block getLatestBlock() {
@@ -379,4 +1138,13 @@ class BlockChainExecutor {
     public void setMiner(Miner miner) {
         this.miner = miner;
     }
+    public void setUtxos(UtxoCache utxos) {
+        this.utxos = utxos;
+    }
+    public void setTxIndex(TransactionIndex txIndex) {
+        this.txIndex = txIndex;
+    }
+    public void setAddressIndex(AddressIndex addressIndex) {
+        this.addressIndex = addressIndex;
+    }
 }
@@ -0,0 +1,169 @@
+package waffle.wafflecore;
+
+import static waffle.wafflecore.constants.Constants.*;
+import waffle.Config;
+import waffle.wafflecore.model.*;
+import waffle.wafflecore.util.BlockChainUtil;
+import waffle.wafflecore.util.ByteArrayWrapper;
+import waffle.wafflecore.util.Hasher;
+import waffle.wafflecore.util.MerkleTree;
+import waffle.wafflecore.tool.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ *  Consistency checks run with `waffle check [name]`.
+ *  Every failure is logged; the exit status is 1 if any failed.
+ */
+public class Check {
+    private static Logger logger = Logger.getInstance();
+    private static int failures = 0;
+
+    public static int run(String[] args) {
+        String name = args.length > 1 ? args[1] : "all";
+
+        switch (name) {
+            case "all":
+            case "merkle":
+                merkle();
+                break;
+            default:
+                logger.log("Usage: check [merkle]");
+                return 1;
+        }
+
+        logger.log(failures == 0 ? "All checks passed." : failures + " checks failed.");
+        return failures == 0 ? 0 : 1;
+    }
+
+    /**
+     *  Merkle tree shape, incremental updates and proofs, and the switch of
+     *  root scheme while a block is mined.
+     */
+    public static void merkle() {
+        Random random = new Random(0);
+
+        // Odd levels carry their last node up unchanged.
+        byte[] a = randomId(random);
+        byte[] b = randomId(random);
+        byte[] c = randomId(random);
+        byte[] d = randomId(random);
+        byte[] e = randomId(random);
+        byte[] ab = node(a, b);
+        byte[] cd = node(c, d);
+        expect("root of 3 leaves", node(ab, c), MerkleTree.computeRoot(ids(a, b, c)));
+        expect("root of 5 leaves", node(node(ab, cd), e), MerkleTree.computeRoot(ids(a, b, c, d, e)));
+        check("repeated last leaf changes root",
+            !Arrays.equals(MerkleTree.computeRoot(ids(a, b, c)), MerkleTree.computeRoot(ids(a, b, c, c))));
+
+        // A single leaf is its own root and needs no proof.
+        MerkleTree single = new MerkleTree(ids(a));
+        expect("root of 1 leaf", a, single.getRoot());
+        check("proof of 1 leaf is empty", single.getProof(0).isEmpty());
+        check("proof of 1 leaf verifies", MerkleTree.verifyProof(a, 0, 1, single.getProof(0), a));
+        check("proof of 1 leaf rejects other leaf", !MerkleTree.verifyProof(b, 0, 1, single.getProof(0), a));
+        check("proof of 1 leaf rejects extra hash",
+            !MerkleTree.verifyProof(a, 0, 1, new ArrayList<byte[]>(Arrays.asList(b)), a));
+        expect("root of no leaves", EMPTY_BYTES, new MerkleTree().getRoot());
+
+        // Appends and replaces match a rebuild, and every proof checks.
+        for (int n = 1; n <= 70; n++) {
+            ArrayList<ByteArrayWrapper> txIds = new ArrayList<ByteArrayWrapper>();
+            MerkleTree tree = new MerkleTree();
+            for (int i = 0; i < n; i++) {
+                byte[] txId = randomId(random);
+                txIds.add(new ByteArrayWrapper(txId));
+                tree.append(txId);
+                expect("append to " + (i + 1) + " leaves", MerkleTree.computeRoot(txIds), tree.getRoot());
+            }
+
+            int index = random.nextInt(n);
+            byte[] txId = randomId(random);
+            txIds.set(index, new ByteArrayWrapper(txId));
+            tree.replace(index, txId);
+            byte[] root = MerkleTree.computeRoot(txIds);
+            expect("replace in " + n + " leaves", root, tree.getRoot());
+
+            for (int i = 0; i < n; i++) {
+                byte[] leaf = txIds.get(i).getBytes();
+                ArrayList<byte[]> proof = tree.getProof(i);
+                check("proof " + i + " of " + n, MerkleTree.verifyProof(leaf, i, n, proof, root));
+                if (n > 1) {
+                    check("proof " + i + " of " + n + " at other index",
+                        !MerkleTree.verifyProof(leaf, (i + 1) % n, n, proof, root));
+                    ArrayList<byte[]> tampered = new ArrayList<byte[]>(proof);
+                    tampered.set(0, randomId(random));
+                    check("tampered proof " + i + " of " + n, !MerkleTree.verifyProof(leaf, i, n, tampered, root));
+                }
+            }
+        }
+
+        // Large trees hash levels in parallel; roots must not change.
+        ArrayList<ByteArrayWrapper> large = new ArrayList<ByteArrayWrapper>();
+        MerkleTree appended = new MerkleTree();
+        for (int i = 0; i < MERKLE_PARALLEL_LEAVES * 2 + 3; i++) {
+            byte[] txId = randomId(random);
+            large.add(new ByteArrayWrapper(txId));
+            appended.append(txId);
+        }
+        expect("parallel build", appended.getRoot(), MerkleTree.computeRoot(large));
+
+        // Seed crossing the activation time while mined takes the other root.
+        long activation = Config.getMerkleRootTime();
+        try {
+            Config.setMerkleRootTime(1000);
+            ArrayList<ByteArrayWrapper> txIds = ids(a, b, c);
+            Block seed = new Block();
+            seed.setTimestamp(999);
+            seed.setTransactionIds(txIds);
+            seed.setTransactionRootHash(BlockChainUtil.rootHashTransactionIds(txIds, 999));
+            expect("legacy root before activation", BlockChainUtil.legacyRootHashTransactionIds(txIds), seed.getTransactionRootHash());
+
+            Miner.setTimestamp(seed, 999);
+            expect("root kept before activation", BlockChainUtil.legacyRootHashTransactionIds(txIds), seed.getTransactionRootHash());
+            Miner.setTimestamp(seed, 1000);
+            expect("root switched at activation", MerkleTree.computeRoot(txIds), seed.getTransactionRootHash());
+            Miner.setTimestamp(seed, 1001);
+            expect("root kept after activation", MerkleTree.computeRoot(txIds), seed.getTransactionRootHash());
+            Miner.setTimestamp(seed, 500);
+            expect("root switched back", BlockChainUtil.legacyRootHashTransactionIds(txIds), seed.getTransactionRootHash());
+        } finally {
+            Config.setMerkleRootTime(activation);
+        }
+
+        logger.log("Merkle checks done.");
+    }
+
+    private static void check(String name, boolean ok) {
+        if (!ok) {
+            failures++;
+            logger.log("Check failed: " + name);
+        }
+    }
+
+    private static void expect(String name, byte[] expected, byte[] actual) {
+        check(name, Arrays.equals(expected, actual));
+    }
+
+    private static byte[] node(byte[] left, byte[] right) {
+        byte[] pair = Arrays.copyOf(left, left.length + right.length);
+        System.arraycopy(right, 0, pair, left.length, right.length);
+        return Hasher.doubleSha256(pair);
+    }
+
+    private static ArrayList<ByteArrayWrapper> ids(byte[]... txIds) {
+        ArrayList<ByteArrayWrapper> ret = new ArrayList<ByteArrayWrapper>();
+        for (byte[] txId : txIds) {
+            ret.add(new ByteArrayWrapper(txId));
+        }
+        return ret;
+    }
+
+    private static byte[] randomId(Random random) {
+        byte[] id = new byte[HASH_LENGTH];
+        random.nextBytes(id);
+        return id;
+    }
+}
@@ -5,9 +5,11 @@ import waffle.wafflecore.tool.Logger;
 import waffle.wafflecore.WaffleCore;
 import waffle.wafflecore.message.*;
 import waffle.wafflecore.model.*;
+import waffle.wafflecore.util.FrameCompressor;
 import waffle.wafflecore.util.MessageUtil;
+import waffle.wafflecore.util.WireCodec;
 
-import org.apache.commons.lang3.ArrayUtils;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.InetAddress;
@@ -18,7 +20,11 @@ import java.util.concurrent.Future;
 import java.util.concurrent.Callable;
 import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.Selector;
@@ -35,11 +41,16 @@ public class ConnectionManager {
 
     private InetSocketAddress host;
     private HashMap<String, SocketChannel> peers = new HashMap<String, SocketChannel>();
+    private ConcurrentHashMap<String, Integer> peerFeatures = new ConcurrentHashMap<String, Integer>();
+    private Set<String> helloSent = ConcurrentHashMap.newKeySet();
+    private static final byte[] EMPTY_FRAME = new byte[0]; // Envelope not encodable in binary
+    private FrameCompressor compressor = new FrameCompressor();
 
     private ByteBuffer buf = ByteBuffer.allocate(MAX_BLOCK_SIZE + 1);
 
     private MessageHandler messageHandler;
     private BlockChainExecutor blockChainExecutor;
+    private Inventory inventory;
 
     public ConnectionManager(InetAddress hostAddr, int port) {
         this(new InetSocketAddress(hostAddr, port));
@@ -136,22 +147,31 @@ public class ConnectionManager {
 
     private void handleRead(SelectionKey key) {
         SocketChannel socketChannel = (SocketChannel) key.channel();
-        StringBuilder sb = new StringBuilder();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
         String peerStr = "";
 
+        // Bytes of a frame not complete at the last read.
+        byte[] pending = (byte[]) key.attachment();
+        if (pending != null) {
+            received.write(pending, 0, pending.length);
+        }
+
         try {
             buf.clear();
             int read = 0;
 
             while ((read = socketChannel.read(buf)) > 0) {
                 buf.flip();
-                byte[] bytes = new byte[buf.limit()];
-                buf.get(bytes);
-                sb.append(new String(bytes));
+                received.write(buf.array(), 0, buf.limit());
+                buf.clear();
             }
 
             if (read == -1) {
                 logger.log("Closing " + socketChannel);
+                String addr = socketChannel.getRemoteAddress().toString();
+                peerFeatures.remove(addr);
+                helloSent.remove(addr);
+                inventory.blockCache.removePeer(addr);
                 socketChannel.close();
                 return;
             }
@@ -161,26 +181,68 @@ public class ConnectionManager {
             e.printStackTrace();
         }
 
-        sb.insert(0, '[');
-        sb.append(']');
-        replaceAll(sb, "}{", "},{");
-        byte[] data = sb.toString().getBytes();
-
-        Envelope[] envs = MessageUtil.deserializeArray(data);
-        ArrayUtils.reverse(envs);
+        byte[] data = received.toByteArray();
+        ArrayList<Envelope> envs = new ArrayList<Envelope>();
+        int pos = parseFrames(data, 0, data.length, true, envs);
+        key.attach(pos < data.length ? Arrays.copyOfRange(data, pos, data.length) : null);
 
+        Collections.reverse(envs);
         for (Envelope env : envs) {
             messageHandler.handleMessage(env, peerStr);
         }
     }
 
-    private static void replaceAll(StringBuilder sb, String from, String to) {
-        int idx = sb.indexOf(from);
-        while (idx != -1) {
-            sb.replace(idx, idx + from.length(), to);
-            idx += to.length();
-            idx = sb.indexOf(from, idx);
+    // Binary and deflated frames start with a marker byte no JSON text starts
+    // with. Everything between them is JSON envelopes back to back, each read
+    // to where the parser ends it.
+    // Returns where a frame or envelope not yet complete starts, or end.
+    private int parseFrames(byte[] data, int pos, int end, boolean deflatedAllowed, ArrayList<Envelope> envs) {
+        while (pos < end) {
+            byte marker = data[pos];
+            if (marker == WireCodec.MARKER || marker == FrameCompressor.MARKER) {
+                if (end - pos < WireCodec.FRAME_HEADER_SIZE) {
+                    break;
+                }
+                int length = ByteBuffer.wrap(data, pos + 1, Integer.BYTES).getInt();
+                if (length <= 0 || length > WireCodec.MAX_FRAME_SIZE ||
+                    (marker == FrameCompressor.MARKER && !deflatedAllowed))
+                {
+                    logger.log("Invalid frame received.");
+                    return end;
+                }
+                if (end - pos - WireCodec.FRAME_HEADER_SIZE < length) {
+                    break;
+                }
+
+                int start = pos + WireCodec.FRAME_HEADER_SIZE;
+                if (marker == WireCodec.MARKER) {
+                    Envelope env = WireCodec.decode(ByteBuffer.wrap(data, start, length).slice());
+                    if (env != null) {
+                        envs.add(env);
+                    } else {
+                        logger.log("Invalid data received.");
+                    }
+                } else {
+                    // Decoded before the next frame reuses the inflate buffer.
+                    int inflated = compressor.inflate(data, start, length);
+                    if (inflated < 0 || parseFrames(compressor.getInflateBuffer(), 0, inflated, false, envs) != inflated) {
+                        logger.log("Invalid data received.");
+                    }
+                }
+                pos = start + length;
+            } else if (marker < 0) {
+                logger.log("Invalid data received.");
+                return end;
+            } else {
+                int jsonEnd = MessageUtil.deserializeConcatenated(data, pos, end - pos, envs);
+                if (jsonEnd == pos) {
+                    break;
+                }
+                pos = jsonEnd;
+            }
         }
+
+        return pos;
     }
 
     /**
@@ -214,6 +276,69 @@ public class ConnectionManager {
         });
     }
 
+    /**
+     *  Send env to all peers, in binary to those which read it.
+     */
+    public void asyncBroadcast(Envelope env) {
+        ExecutorService executor = WaffleCore.getExecutor();
+
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                byte[][] encoded = new byte[4][]; // json, binary, and both deflated
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid() && key.channel() instanceof SocketChannel) {
+                        SocketChannel socketChannel = (SocketChannel) key.channel();
+                        try {
+                            byte[] msg = encodeFor(env, socketChannel.getRemoteAddress().toString(), encoded);
+                            socketChannel.write(ByteBuffer.wrap(msg));
+                        } catch (IOException e) {
+                            System.err.println("Connection error occured.");
+                            try {
+                                socketChannel.close();
+                            } catch (IOException ce) {}
+                        }
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    public void asyncSend(Envelope env, String addr) {
+        asyncSend(encodeFor(env, addr, new byte[4][]), addr);
+    }
+
+    // Binary if peer announced it and env can be carried exactly, JSON otherwise.
+    // Then deflated if peer announced that and the message is large.
+    // Encodings are kept in encoded so a broadcast makes each at most once.
+    private byte[] encodeFor(Envelope env, String addr, byte[][] encoded) {
+        Integer features = peerFeatures.get(addr);
+        int form = 0;
+        if (features != null && (features & FEATURE_BINARY) != 0) {
+            if (encoded[1] == null) {
+                encoded[1] = WireCodec.encode(env);
+                if (encoded[1] == null) {
+                    encoded[1] = EMPTY_FRAME;
+                }
+            }
+            if (encoded[1] != EMPTY_FRAME) {
+                form = 1;
+            }
+        }
+
+        if (form == 0 && encoded[0] == null) {
+            encoded[0] = MessageUtil.serialize(env);
+        }
+        if (features != null && (features & FEATURE_DEFLATE) != 0) {
+            if (encoded[form + 2] == null) {
+                encoded[form + 2] = compressor.deflate(encoded[form]);
+            }
+            return encoded[form + 2];
+        }
+        return encoded[form];
+    }
+
     public void connectTo(String hostName, int port) {
         InetSocketAddress addr = new InetSocketAddress(hostName, port);
         SocketChannel socketChannel = null;
@@ -261,10 +386,33 @@ public class ConnectionManager {
             blockChainExecutor.getKnownBlockIds()
         );
 
+        hello.setFeatures(FEATURES);
+        helloSent.add(peerAddr);
+
         Envelope env = hello.packToEnvelope();
         asyncSend(MessageUtil.serialize(env), peerAddr);
     }
 
+    /**
+     *  Record features from the Hello of peer.
+     */
+    public void setPeerFeatures(String peerAddr, int features) {
+        peerFeatures.put(peerAddr, features);
+    }
+
+    public boolean hasPeerFeature(String peerAddr, int feature) {
+        Integer features = peerFeatures.get(peerAddr);
+        return features != null && (features & feature) != 0;
+    }
+
+    public boolean isHelloSent(String peerAddr) {
+        return helloSent.contains(peerAddr);
+    }
+
+    public FrameCompressor getFrameCompressor() {
+        return compressor;
+    }
+
     public ArrayList<String> getPeers() {
         ArrayList<String> peerls = new ArrayList<String>();
         // WIP
@@ -278,4 +426,7 @@ public class ConnectionManager {
     public void setBlockChainExecutor(BlockChainExecutor blockChainExecutor) {
         this.blockChainExecutor = blockChainExecutor;
     }
+    public void setInventory(Inventory inventory) {
+        this.inventory = inventory;
+    }
 }
@@ -34,14 +34,13 @@ class Genesis {
         tx.setId(TransactionUtil.computeTransactionId(serialized));
 
         ArrayList<ByteArrayWrapper> txIds = new ArrayList<ByteArrayWrapper>(Arrays.asList(tx.getId()));
-        byte[] roottx = BlockChainUtil.rootHashTransactionIds(txIds);
 
         genesisBlock = new Block();
         genesisBlock.setPreviousHash(ByteArrayWrapper.copyOf(EMPTY_BYTES));
         genesisBlock.setId(ByteArrayWrapper.copyOf(Base64.getDecoder().decode("AAbxHnNWxCDoYeGQygtqnNWIebwOiHnJkcpcAMdRvNM=")));
         genesisBlock.setDifficulty(INITIAL_DIFFICULTY);
         genesisBlock.setTimestamp(1498699423538l);
-        genesisBlock.setTransactionRootHash(roottx);
+        genesisBlock.setTransactionRootHash(BlockChainUtil.rootHashTransactionIds(txIds, genesisBlock.getTimestamp()));
         genesisBlock.setTransactionIds(txIds);
         genesisBlock.setTransactions(new ArrayList<byte[]>(Arrays.asList(tx.getOriginal())));
         genesisBlock.setParsedTransactions(new ArrayList<Transaction>(Arrays.asList(tx)));
@@ -2,16 +2,39 @@ package waffle.wafflecore;
 
 import static waffle.wafflecore.constants.Constants.*;
 import waffle.wafflecore.model.*;
+import waffle.wafflecore.util.BlockUtil;
 import waffle.wafflecore.util.ByteArrayWrapper;
+import waffle.wafflecore.store.BlockStore;
 import waffle.wafflecore.WaffleCore;
 import waffle.wafflecore.message.Message;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Callable;
+import java.util.Set;
 import java.util.TreeMap;
 
 public class Inventory {
-    public static ConcurrentHashMap<ByteArrayWrapper, byte[]> blocks = new ConcurrentHashMap<ByteArrayWrapper, byte[]>();
+    // Stores are opened by open, so loading this class touches no files.
+    public static BlockStore blocks = null;
+    public static BlockStore undo = null; // Spent outputs of applied blocks
+    public static BlockStore headers = null; // Headers of applied and pruned blocks
+    public static BlockCache blockCache = null; // Blocks served to peers
     public static TreeMap<ByteArrayWrapper, Transaction> memoryPool = new TreeMap<ByteArrayWrapper, Transaction>();
+    public static TransactionCache transactions = new TransactionCache(TX_CACHE_SIZE);
+    public static Set<ByteArrayWrapper> damagedBlocks = ConcurrentHashMap.newKeySet(); // Requested again by the store verifier
+
+    /**
+     *  Open stores of the node under DATA_DIR.
+     */
+    public static void open() {
+        open(BLOCKS_DIR, UNDO_DIR, HEADERS_DIR);
+    }
+
+    public static void open(String blocksDir, String undoDir, String headersDir) {
+        blocks = new BlockStore(blocksDir, BlockUtil.compressionDictionary());
+        undo = new BlockStore(undoDir);
+        headers = new BlockStore(headersDir);
+        blockCache = new BlockCache(blocks, BLOCK_CACHE_BYTES);
+    }
 }
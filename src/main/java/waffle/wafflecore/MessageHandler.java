@@ -14,6 +14,7 @@ import waffle.wafflecore.util.Hasher;
 import waffle.wafflecore.util.ByteArrayWrapper;
 import waffle.wafflecore.tool.Logger;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
@@ -25,6 +26,7 @@ public class MessageHandler {
     private Inventory inventory;
     private ConnectionManager connectionManager;
     private BlockChainExecutor blockChainExecutor;
+    private StoreVerifier storeVerifier;
     private int pendingCnt = 0;
 
     public void handleMessage(Envelope env, String peerAddr) {
@@ -58,6 +60,12 @@ public class MessageHandler {
 
                 logger.log("Hello Received:" + peerAddr);
 
+                // Answer once so the peer learns our features too.
+                connectionManager.setPeerFeatures(peerAddr, hello.getFeatures());
+                if (hello.getFeatures() != 0 && !connectionManager.isHelloSent(peerAddr)) {
+                    connectionManager.newPeer(peerAddr);
+                }
+
                 ArrayList<ByteArrayWrapper> blockIds = hello.getKnownBlocks();
                 for (ByteArrayWrapper id : blockIds) {
                     if (!blockChainExecutor.blocks.containsKey(id)) {
@@ -74,9 +82,12 @@ public class MessageHandler {
                     invMsg.setObjectId(id);
 
                     Envelope env = invMsg.packToEnvelope();
-                    connectionManager.asyncSend(MessageUtil.serialize(env), peerAddr);
+                    connectionManager.asyncSend(env, peerAddr);
                 }
 
+                // Now the peer can answer, ask for blocks the verifier dropped.
+                storeVerifier.requestDamaged(peerAddr);
+
                 return null;
             }
         });
@@ -93,6 +104,9 @@ public class MessageHandler {
             case CONTENT:
                 handleContent(msg, peerAddr);
                 break;
+            case UNAVAILABLE:
+                handleUnavailable(msg, peerAddr);
+                break;
             default:
                 break;
         }
@@ -116,13 +130,14 @@ public class MessageHandler {
                 logger.log("Advertise Received:" + msg.getObjectId().toString());
 
                 boolean haveObject = msg.getIsBlock() ?
-                    inventory.blocks.containsKey(id) : inventory.memoryPool.containsKey(id);
+                    inventory.blocks.containsKey(id) || blockChainExecutor.blocks.containsKey(id) :
+                    inventory.memoryPool.containsKey(id);
                 if (haveObject) return null;
 
                 msg.setInventoryMessageType(REQUEST);
 
                 Envelope env = msg.packToEnvelope();
-                connectionManager.asyncSend(MessageUtil.serialize(env), peerAddr);
+                connectionManager.asyncSend(env, peerAddr);
 
                 return null;
             }
@@ -141,21 +156,38 @@ public class MessageHandler {
 
                 logger.log("Request Received:" + msg.getObjectId().toString());
 
-                byte[] data;
                 if (msg.getIsBlock()) {
-                    data = inventory.blocks.get(msg.getObjectId());
+                    // Hot blocks come from the cache, others from the store, mapped
+                    // unless stored deflated. Neither is copied into the message.
+                    ByteBuffer data = inventory.blockCache.get(msg.getObjectId(), peerAddr);
+                    if (data == null) {
+                        // Tell peer not to wait for a block we pruned, if it reads that message.
+                        if (blockChainExecutor.blocks.containsKey(msg.getObjectId()) &&
+                            connectionManager.hasPeerFeature(peerAddr, FEATURE_UNAVAILABLE))
+                        {
+                            msg.setInventoryMessageType(UNAVAILABLE);
+                            Envelope env = msg.packToEnvelope();
+                            connectionManager.asyncSend(env, peerAddr);
+                        }
+                        return null;
+                    }
+                    msg.setDataBuffer(data);
                 } else {
                     Transaction tx;
                     tx = inventory.memoryPool.get(msg.getObjectId());
-                    data = tx.getOriginal();
+                    if (tx == null) {
+                        // Confirmed transactions are found through the index, if enabled.
+                        tx = blockChainExecutor.getTransaction(msg.getObjectId());
+                    }
+                    if (tx == null) return null;
+                    msg.setData(tx.getOriginal());
                 }
 
                 msg.setInventoryMessageType(CONTENT);
-                msg.setData(data);
 
                 Envelope env = msg.packToEnvelope();
 
-                connectionManager.asyncSend(MessageUtil.serialize(env), peerAddr);
+                connectionManager.asyncSend(env, peerAddr);
 
                 return null;
             }
@@ -172,30 +204,54 @@ public class MessageHandler {
                 if (data.length > MAX_BLOCK_SIZE) throw new IllegalArgumentException();
 
                 if (msg.getIsBlock()) {
-                    ByteArrayWrapper id = BlockUtil.computeBlockId(data);
-                    if (!id.equals(msg.getObjectId())) return null;
+                    // Binary frames come decoded. Otherwise only the header is
+                    // hashed until the block is known to be new, and the body
+                    // is parsed once, here.
+                    Block block = msg.getBlock();
+                    ByteArrayWrapper id = block != null ? block.getId() : BlockUtil.computeBlockId(data);
+                    if (id == null || !id.equals(msg.getObjectId())) return null;
 
                     synchronized (inventory.blocks) {
                         if (inventory.blocks.containsKey(id)) return null;
-                        inventory.blocks.put(id, data);
+                        // Chain already has it. Only bodies the store verifier
+                        // dropped are taken back; pruned ones stay pruned.
+                        boolean restored = blockChainExecutor.blocks.containsKey(id);
+                        if (restored && !inventory.damagedBlocks.contains(id)) return null;
+
+                        // Bytes are stored only under the id the full parse gives.
+                        if (block == null) {
+                            block = BlockUtil.deserialize(data);
+                            if (block == null || !block.getId().equals(id)) return null;
+                        }
+                        inventory.blockCache.put(id, data);
+                        inventory.damagedBlocks.remove(id);
+
+                        if (restored) {
+                            logger.log("Block restored:" + id.toString());
+                            return null;
+                        }
                     }
 
-                    Block block = BlockUtil.deserialize(data);
-
                     logger.log("Block Received:" + msg.getObjectId().toString());
 
+                    // Binary frames come with transactions read as views, so
+                    // checkBlock finds them parsed.
+                    if (msg.getTransactions() != null) {
+                        msg.getTransactions().forEach(x -> inventory.transactions.put(x));
+                    }
+
                     ByteArrayWrapper prevId = block.getPreviousHash();
-                    if (!inventory.blocks.containsKey(prevId)) {
+                    if (!inventory.blocks.containsKey(prevId) && !blockChainExecutor.blocks.containsKey(prevId)) {
                         InventoryMessage newMsg = new InventoryMessage();
                         newMsg.setInventoryMessageType(REQUEST);
                         newMsg.setIsBlock(true);
                         newMsg.setObjectId(block.getPreviousHash());
 
                         Envelope env = newMsg.packToEnvelope();
-                        connectionManager.asyncSend(MessageUtil.serialize(env), peerAddr);
+                        connectionManager.asyncSend(env, peerAddr);
                     }
 
-                    blockChainExecutor.processBlock(data, prevId);
+                    blockChainExecutor.processBlock(block, prevId);
 
                     if (pendingCnt > 0) {
                         pendingCnt--;
@@ -207,9 +263,9 @@ public class MessageHandler {
                     if (!id.equals(msg.getObjectId())) return null;
                     if (inventory.memoryPool.containsKey(id)) return null;
 
-                    Transaction tx = TransactionUtil.deserialize(data);
+                    Transaction tx = inventory.transactions.get(data);
 
-                    if (tx.getInEntries().size() == 0) return null;
+                    if (tx == null || TransactionUtil.viewOf(tx).getInCount() <= 0) return null;
 
                     logger.log("Tx Received:" + msg.getObjectId().toString());
 
@@ -223,13 +279,24 @@ public class MessageHandler {
 
                 Envelope env = msg.packToEnvelope();
 
-                connectionManager.asyncBroadcast(MessageUtil.serialize(env));
+                connectionManager.asyncBroadcast(env);
 
                 return null;
             }
         });
     }
 
+    public void handleUnavailable(InventoryMessage msg, String peerAddr) {
+        logger.log("Unavailable at " + peerAddr + ":" + msg.getObjectId().toString());
+
+        // Requested at hello; do not keep waiting for it.
+        if (pendingCnt > 0) {
+            pendingCnt--;
+        } else {
+            WaffleCore.notifyReady();
+        }
+    }
+
     // setter
     public void setInventory(Inventory inventory) {
         this.inventory = inventory;
@@ -240,4 +307,7 @@ public class MessageHandler {
     public void setBlockChainExecutor(BlockChainExecutor blockChainExecutor) {
         this.blockChainExecutor = blockChainExecutor;
     }
+    public void setStoreVerifier(StoreVerifier storeVerifier) {
+        this.storeVerifier = storeVerifier;
+    }
 }
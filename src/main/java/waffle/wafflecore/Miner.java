@@ -10,8 +10,8 @@ import waffle.wafflecore.BlockChainExecutor;
 import waffle.wafflecore.model.*;
 import waffle.wafflecore.message.*;
 import waffle.wafflecore.util.BlockUtil;
-import waffle.wafflecore.util.MessageUtil;
 import waffle.wafflecore.util.BlockChainUtil;
+import waffle.wafflecore.util.MerkleTree;
 import waffle.wafflecore.util.TransactionUtil;
 import waffle.wafflecore.util.ByteArrayWrapper;
 
@@ -52,14 +52,13 @@ public class Miner {
         long nonce = ByteBuffer.wrap(nonceSeed).getLong(); // Byte array to Long
         while (isMining) {
             seed.setNonce(nonce++);
-            seed.setTimestamp(System.currentTimeMillis());
+            setTimestamp(seed, System.currentTimeMillis());
 
-            byte[] data = BlockUtil.serialize(seed);
-            ByteArrayWrapper blockId = BlockUtil.computeBlockId(data);
+            ByteArrayWrapper blockId = BlockUtil.computeBlockId(seed);
 
             if (BlockUtil.difficultyOf(blockId) > seed.getDifficulty()) {
                 seed.setId(blockId);
-                seed.setOriginal(data);
+                seed.setOriginal(BlockUtil.serialize(seed));
                 return true;
             }
         }
@@ -67,6 +66,18 @@ public class Miner {
         return false;
     }
 
+    /**
+     *  Set timestamp of seed. Its root is rebuilt if the new timestamp
+     *  falls on the other side of the Merkle root activation.
+     */
+    static void setTimestamp(Block seed, long timestamp) {
+        boolean merkleRoot = BlockChainUtil.usesMerkleRoot(seed.getTimestamp());
+        seed.setTimestamp(timestamp);
+        if (seed.getTransactionIds() != null && BlockChainUtil.usesMerkleRoot(timestamp) != merkleRoot) {
+            seed.setTransactionRootHash(BlockChainUtil.rootHashTransactionIds(seed));
+        }
+    }
+
     public void start() {
         isMining = true;
         ExecutorService executor = WaffleCore.getExecutor();
@@ -102,8 +113,9 @@ public class Miner {
         ArrayList<Transaction> txs = new ArrayList<Transaction>();
 
         // Iteration over memory pool.
+        // Work on cached copies so exec info of pooled transactions is untouched.
         for (Map.Entry<ByteArrayWrapper, Transaction> txEntry : inventory.memoryPool.entrySet()) {
-            Transaction tx = txEntry.getValue();
+            Transaction tx = inventory.transactions.get(txEntry.getValue().getOriginal());
 
             size += tx.getOriginal().length + 50;
             if (size > MAX_BLOCK_SIZE) {
@@ -115,6 +127,8 @@ public class Miner {
         long blockTime = System.currentTimeMillis();
         long coinbase = BlockUtil.getCoinbaseAmount(blockChainExecutor.getLatestBlock().getHeight() + 1);
         ArrayList<TransactionOutput> txos = new ArrayList<TransactionOutput>();
+        MerkleTree txTree = new MerkleTree();
+        txTree.append(EMPTY_BYTES); // Coinbase, replaced once fees are known
         for (int i = 0; i < txs.size(); i++) {
             Transaction tx = txs.get(i);
             System.out.println(tx);
@@ -123,8 +137,9 @@ public class Miner {
                 TransactionExecInfo execinfo = tx.getExecInfo();
                 coinbase += execinfo.getTransactionFee();
                 txos.addAll(execinfo.getRedeemedOutputs());
+                txTree.append(tx.getId().getBytes());
             } catch (Exception e) {
-                txs.remove(i);
+                txs.remove(i--);
             }
         }
 
@@ -143,6 +158,7 @@ public class Miner {
             e.printStackTrace();
         }
         txs.add(0, coinbaseTx);
+        txTree.replace(0, coinbaseTx.getId().getBytes());
 
         ArrayList<ByteArrayWrapper> txIds = new ArrayList<ByteArrayWrapper>();
         ArrayList<byte[]> txOriginals = new ArrayList<byte[]>();
@@ -155,15 +171,17 @@ public class Miner {
         block.setPreviousHash(blockChainExecutor.getLatestBlock().getId());
         block.setDifficulty(BlockUtil.getNextDifficulty(
             BlockChainUtil.ancestors(blockChainExecutor.getLatestBlock(), blockChainExecutor.getBlocks())));
-        block.setTransactionRootHash(BlockChainUtil.rootHashTransactionIds(txIds));
+        block.setTimestamp(blockTime);
+        block.setTransactionRootHash(BlockChainUtil.usesMerkleRoot(blockTime) ?
+            txTree.getRoot() : BlockChainUtil.legacyRootHashTransactionIds(txIds));
+        block.setTransactionIds(txIds);
+        block.setTransactions(txOriginals);
 
         // If mining succeed apply block.
         if (!mine(block)) {
             return;
         }
 
-        block.setTransactionIds(txIds);
-        block.setTransactions(txOriginals);
         block.setParsedTransactions(txs);
 
         String idStr = block.getId().toString().substring(0, 7);
@@ -179,7 +197,7 @@ public class Miner {
             serialized
         );
         Envelope env = msg.packToEnvelope();
-        connectionManager.asyncBroadcast(MessageUtil.serialize(env));
+        connectionManager.asyncBroadcast(env);
         messageHandler.handleMessage(env, "");
     }
 
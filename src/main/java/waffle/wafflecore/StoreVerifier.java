@@ -0,0 +1,195 @@
+package waffle.wafflecore;
+
+import static waffle.wafflecore.constants.Constants.*;
+import static waffle.wafflecore.message.type.InventoryMessageType.*;
+import waffle.wafflecore.message.*;
+import waffle.wafflecore.model.Block;
+import waffle.wafflecore.store.ChainSnapshot;
+import waffle.wafflecore.util.BlockChainUtil;
+import waffle.wafflecore.util.BlockUtil;
+import waffle.wafflecore.util.ByteArrayWrapper;
+import waffle.wafflecore.util.Hasher;
+import waffle.wafflecore.tool.Logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Re-hashes stored blocks and checks the chain snapshot.
+ *  Segments are checked in parallel. Blocks which do not hash to their
+ *  id, or whose transactions do not match the header, are removed from
+ *  the store and requested again from peers; headers of blocks already on
+ *  the chain are kept like those of pruned blocks, so it runs after the
+ *  chain is restored. Requests go to each peer once it says hello and are
+ *  repeated until the blocks are back. A damaged snapshot is set aside;
+ *  the next one is written from the chain in memory.
+ */
+public class StoreVerifier {
+    private Logger logger = Logger.getInstance();
+    private Inventory inventory;
+    private BlockChainExecutor blockChainExecutor;
+    private ConnectionManager connectionManager;
+
+    /**
+     *  Verify in background on low priority threads.
+     */
+    public void start() {
+        WaffleCore.getExecutor().submit(() -> run(Thread.MIN_PRIORITY));
+    }
+
+    /**
+     *  Verify now. Returns number of damaged blocks found.
+     */
+    public int run(int priority) {
+        long start = System.currentTimeMillis();
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "verifier");
+            thread.setPriority(priority);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        int total = inventory.blocks.size();
+        AtomicInteger checked = new AtomicInteger();
+        AtomicInteger reported = new AtomicInteger();
+        List<ByteArrayWrapper> damaged = Collections.synchronizedList(new ArrayList<ByteArrayWrapper>());
+
+        ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
+        for (int i = 0; i < inventory.blocks.getSegmentCount(); i++) {
+            ArrayList<ByteArrayWrapper> ids = inventory.blocks.getIds(i);
+            if (ids == null) {
+                continue;
+            }
+
+            tasks.add(pool.submit(() -> {
+                for (ByteArrayWrapper id : ids) {
+                    if (!verifyBlock(id)) {
+                        damaged.add(id);
+                    }
+
+                    // Report every tenth.
+                    int percent = total == 0 ? 100 : checked.incrementAndGet() * 100 / total;
+                    int last = reported.get();
+                    if (percent / 10 > last / 10 && reported.compareAndSet(last, percent)) {
+                        logger.log("Verified " + percent + "% of stored blocks.");
+                    }
+                }
+            }));
+        }
+
+        Future<Boolean> snapshot = pool.submit(() -> verifySnapshot(pool));
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+            snapshot.get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        pool.shutdown();
+
+        for (ByteArrayWrapper id : damaged) {
+            quarantine(id);
+        }
+        if (!damaged.isEmpty()) {
+            inventory.headers.sync();
+            // Peers which have not said hello yet are asked when they do.
+            requestDamaged(null);
+        }
+
+        logger.log("Store verification done: " + total + " blocks, " + damaged.size() + " damaged, " +
+            (System.currentTimeMillis() - start) + " ms.");
+        return damaged.size();
+    }
+
+    // Id and transactions must hash to what the block claims.
+    private boolean verifyBlock(ByteArrayWrapper id) {
+        byte[] data = inventory.blocks.get(id);
+        if (data == null) {
+            return !inventory.blocks.containsKey(id); // unreadable unless removed meanwhile
+        }
+
+        try {
+            if (!id.equals(BlockUtil.computeBlockId(data))) {
+                return false;
+            }
+
+            Block block = BlockUtil.deserialize(data);
+            if (block == null || block.getTransactions().size() != block.getTransactionIds().size()) {
+                return false;
+            }
+            for (int i = 0; i < block.getTransactions().size(); i++) {
+                byte[] txId = Hasher.doubleSha256(block.getTransactions().get(i));
+                if (!Arrays.equals(txId, block.getTransactionIds().get(i).getBytes())) {
+                    return false;
+                }
+            }
+            return Arrays.equals(BlockChainUtil.rootHashTransactionIds(block), block.getTransactionRootHash());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private boolean verifySnapshot(ExecutorService pool) {
+        File file = new File(SNAPSHOT_FILE);
+        if (!file.exists() || ChainSnapshot.read(file, pool, false) != null) {
+            return true;
+        }
+
+        File aside = new File(SNAPSHOT_FILE + ".corrupt");
+        aside.delete();
+        file.renameTo(aside);
+        logger.log("Snapshot damaged, moved to " + aside);
+        return false;
+    }
+
+    private void quarantine(ByteArrayWrapper id) {
+        logger.log("Block damaged, requesting again:" + id.toString());
+        // Keep the chain linkable on restart, as for pruned blocks.
+        Block known = blockChainExecutor.blocks.get(id);
+        if (known != null && !inventory.headers.containsKey(id)) {
+            inventory.headers.put(id, BlockUtil.serializeHeader(known));
+        }
+        inventory.blocks.remove(id);
+        inventory.blockCache.remove(id);
+        inventory.damagedBlocks.add(id);
+    }
+
+    /**
+     *  Ask peer, or every peer if null, for blocks dropped as damaged.
+     */
+    public void requestDamaged(String peerAddr) {
+        InventoryMessage msg = new InventoryMessage();
+        msg.setInventoryMessageType(REQUEST);
+        msg.setIsBlock(true);
+        for (ByteArrayWrapper id : inventory.damagedBlocks) {
+            msg.setObjectId(id);
+
+            Envelope env = msg.packToEnvelope();
+            if (peerAddr == null) {
+                connectionManager.asyncBroadcast(env);
+            } else {
+                connectionManager.asyncSend(env, peerAddr);
+            }
+        }
+    }
+
+    // setter
+    public void setInventory(Inventory inventory) {
+        this.inventory = inventory;
+    }
+    public void setBlockChainExecutor(BlockChainExecutor blockChainExecutor) {
+        this.blockChainExecutor = blockChainExecutor;
+    }
+    public void setConnectionManager(ConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+}
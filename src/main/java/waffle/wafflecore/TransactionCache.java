@@ -0,0 +1,136 @@
+package waffle.wafflecore;
+
+import waffle.wafflecore.model.Transaction;
+import waffle.wafflecore.util.TransactionUtil;
+import waffle.wafflecore.util.ByteArrayWrapper;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  Parsed transactions and their sign hashes keyed by transaction id.
+ *  Transactions are kept as views over their fields, not object graphs.
+ *  Oldest entries are evicted first once capacity is reached.
+ *  Callers get their own Transaction so exec info is never shared.
+ */
+public class TransactionCache {
+    private int capacity;
+    private ConcurrentHashMap<ByteArrayWrapper, Entry> entries = new ConcurrentHashMap<ByteArrayWrapper, Entry>();
+    private ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<Entry>();
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong signHashHits = new AtomicLong();
+    private AtomicLong signHashMisses = new AtomicLong();
+
+    private static class Entry {
+        private final Transaction tx; // its id keys the entry
+        private volatile byte[] signHash;
+
+        private Entry(Transaction tx) {
+            this.tx = tx;
+        }
+    }
+
+    public TransactionCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     *  Parse transaction bytes, reusing a previous parse if there is one.
+     *  Id is always computed from data so cached entries match the bytes.
+     */
+    public Transaction get(byte[] data) {
+        ByteArrayWrapper id = TransactionUtil.computeTransactionId(data);
+
+        Entry entry = entries.get(id);
+        if (entry != null) {
+            hits.incrementAndGet();
+            Transaction tx = copyOf(entry.tx);
+            tx.setSignHash(entry.signHash);
+            return tx;
+        }
+        misses.incrementAndGet();
+
+        Transaction tx = TransactionUtil.deserializeView(data);
+        if (tx == null) {
+            return null;
+        }
+        put(tx);
+
+        return copyOf(tx);
+    }
+
+    public void put(Transaction tx) {
+        Entry entry = new Entry(copyOf(tx));
+        if (entries.putIfAbsent(tx.getId(), entry) != null) {
+            return;
+        }
+        order.add(entry);
+
+        // An id evicted and added again is queued twice; its stale
+        // queue entry must not evict the new one.
+        while (entries.size() > capacity) {
+            Entry oldest = order.poll();
+            if (oldest == null) {
+                break;
+            }
+            entries.remove(oldest.tx.getId(), oldest);
+        }
+    }
+
+    /**
+     *  Sign hash of tx, kept on tx and on its cache entry so later copies
+     *  get it too.
+     */
+    public byte[] getSignHash(Transaction tx) {
+        byte[] signHash = tx.getSignHash();
+        Entry entry = entries.get(tx.getId());
+        if (signHash == null && entry != null) {
+            signHash = entry.signHash;
+            tx.setSignHash(signHash);
+        }
+        if (signHash != null) {
+            signHashHits.incrementAndGet();
+            return signHash;
+        }
+        signHashMisses.incrementAndGet();
+
+        signHash = TransactionUtil.getSignHash(tx);
+        if (entry != null) {
+            entry.signHash = signHash;
+        }
+        return signHash;
+    }
+
+    // Copy sharing the read-only view, without exec info. Entries are
+    // built per copy only if someone asks for them.
+    private static Transaction copyOf(Transaction tx) {
+        Transaction copy = new Transaction(
+            tx.getOriginal(),
+            tx.getId(),
+            tx.getTimestamp(),
+            null,
+            null,
+            null);
+        copy.setView(TransactionUtil.viewOf(tx));
+        return copy;
+    }
+
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    public double getSignHashHitRate() {
+        long total = signHashHits.get() + signHashMisses.get();
+        return total == 0 ? 0 : (double) signHashHits.get() / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Tx cache: size=%d hits=%d misses=%d rate=%.2f sighash rate=%.2f",
+            entries.size(), hits.get(), misses.get(), getHitRate(), getSignHashHitRate());
+    }
+}
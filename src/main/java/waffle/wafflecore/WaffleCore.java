@@ -5,16 +5,21 @@ import waffle.Config;
 import waffle.wafflecore.model.*;
 import waffle.wafflecore.util.BlockChainUtil;
 import waffle.wafflecore.util.ByteArrayWrapper;
+import waffle.wafflecore.store.AddressIndex;
+import waffle.wafflecore.store.TransactionIndex;
+import waffle.wafflecore.store.UtxoCache;
 import waffle.wafflecore.tool.Logger;
 // import waffle.wafflecore.tool.Config;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Scanner;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
 
 public class WaffleCore {
     private static ExecutorService service = null; // Thread Executor
@@ -52,15 +57,24 @@ public class WaffleCore {
         genesis.prepareGenesis();
         Block genesisBlock = Genesis.getGenesisBlock();
 
+        Inventory.open();
         Inventory inventory = new Inventory();
         BlockChainExecutor blockChainExecutor = new BlockChainExecutor();
         Miner miner = new Miner();
         MessageHandler messageHandler = new MessageHandler();
         ConnectionManager connectionManager = new ConnectionManager(hostAddr, listenPort);
+        StoreVerifier storeVerifier = new StoreVerifier();
 
         // Prepare BlockChainExecutor.
         blockChainExecutor.setMiner(miner);
         blockChainExecutor.setInventory(inventory);
+        blockChainExecutor.setUtxos(new UtxoCache(CHAINSTATE_DIR));
+        if (Config.getTxIndex()) {
+            blockChainExecutor.setTxIndex(new TransactionIndex(TXINDEX_DIR));
+        }
+        if (Config.getAddressIndex()) {
+            blockChainExecutor.setAddressIndex(new AddressIndex());
+        }
 
         // Prepare Miner.
         miner.setBlockChainExecutor(blockChainExecutor);
@@ -72,10 +86,17 @@ public class WaffleCore {
         messageHandler.setInventory(inventory);
         messageHandler.setBlockChainExecutor(blockChainExecutor);
         messageHandler.setConnectionManager(connectionManager);
+        messageHandler.setStoreVerifier(storeVerifier);
 
         // Prepare ConnectionManager.
         connectionManager.setMessageHandler(messageHandler);
         connectionManager.setBlockChainExecutor(blockChainExecutor);
+        connectionManager.setInventory(inventory);
+
+        // Prepare StoreVerifier.
+        storeVerifier.setInventory(inventory);
+        storeVerifier.setBlockChainExecutor(blockChainExecutor);
+        storeVerifier.setConnectionManager(connectionManager);
         if (!"-1".equals(peerHostName) && peerPort != -1)
             connectionManager.connectTo(peerHostName, peerPort);
 
@@ -85,6 +106,41 @@ public class WaffleCore {
         inventory.blocks.put(genesisBlock.getId(), genesisBlock.getOriginal());
         blockChainExecutor.processBlock(genesisBlock.getOriginal(), genesisBlock.getPreviousHash());
 
+        // Restore chain kept on disk. It reads only headers, so a damaged
+        // body does not stop it.
+        boolean restored = blockChainExecutor.restore();
+
+        // Stores are trusted after a clean shutdown and checked in background;
+        // otherwise damaged blocks are dropped before anything is built on them.
+        // Running after restore keeps headers of dropped blocks on the chain.
+        File cleanShutdown = new File(CLEAN_SHUTDOWN_FILE);
+        boolean clean = cleanShutdown.delete();
+        if (!clean) {
+            storeVerifier.run(Thread.NORM_PRIORITY);
+        }
+
+        // Replay every block only if neither the UTXO database nor the snapshot is usable.
+        if (!restored) {
+            blockChainExecutor.replayStoredBlocks();
+        }
+        blockChainExecutor.buildTxIndex();
+        blockChainExecutor.loadAddressIndex(new File(ADDRESS_INDEX_FILE));
+        blockChainExecutor.loadMemoryPool(new File(MEMORY_POOL_FILE));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            connectionManager.getFrameCompressor().close();
+            blockChainExecutor.flush();
+            blockChainExecutor.saveAddressIndex(new File(ADDRESS_INDEX_FILE));
+            blockChainExecutor.saveMemoryPool(new File(MEMORY_POOL_FILE));
+            try {
+                cleanShutdown.createNewFile();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+        if (clean) {
+            storeVerifier.start();
+        }
+
         if (!"-1".equals(peerHostName) && peerPort != -1) {
             // Just in case wait for 5 seconds to start mining.
             logger.log("Preparing, please wait...");
@@ -101,6 +157,105 @@ public class WaffleCore {
             }
         }
 
+        // Sweep stale forks and prune old blocks in background.
+        service.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                while (true) {
+                    try {
+                        Thread.sleep(FORK_SWEEP_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                    // A failed round must not end the loop.
+                    try {
+                        blockChainExecutor.sweepStaleForks(Config.getFinalityDepth());
+                        blockChainExecutor.prune(Config.getPruneTarget(), Config.getFinalityDepth());
+                    } catch (Exception e) {
+                        logger.log("Fork sweep or prune failed: " + e);
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+
+        // Write chain state snapshot in background.
+        service.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                while (true) {
+                    try {
+                        Thread.sleep(SNAPSHOT_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                    try {
+                        blockChainExecutor.writeSnapshot(new File(SNAPSHOT_FILE));
+                    } catch (Exception e) {
+                        logger.log("Snapshot failed: " + e);
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+
+        // Ask peers again for blocks the store verifier dropped, until they are back.
+        service.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                while (true) {
+                    try {
+                        Thread.sleep(DAMAGED_BLOCK_RETRY_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                    try {
+                        storeVerifier.requestDamaged(null);
+                    } catch (Exception e) {
+                        logger.log("Damaged block request failed: " + e);
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+
+        // Save memory pool in background.
+        service.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                while (true) {
+                    try {
+                        Thread.sleep(MEMORY_POOL_SAVE_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                    try {
+                        blockChainExecutor.saveMemoryPool(new File(MEMORY_POOL_FILE));
+                    } catch (Exception e) {
+                        logger.log("Memory pool save failed: " + e);
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+
+        // Log cache and compression stats in background.
+        service.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                while (true) {
+                    try {
+                        Thread.sleep(METRICS_LOG_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return null;
+                    }
+                    logger.log(inventory.blockCache.toString());
+                    logger.log(inventory.transactions.toString());
+                    logger.log(connectionManager.getFrameCompressor().toString());
+                }
+            }
+        });
+
         if (isMining) {
             miner.setRecipientAddr(BlockChainUtil.toAddress("Takato Yamazaki".getBytes()));
             miner.start();
@@ -110,10 +265,50 @@ public class WaffleCore {
         scan.next();
     }
 
+    /**
+     *  Export the stored chain to path, or import one from it, without
+     *  joining the network.
+     */
+    public static void runArchive(String command, String path) {
+        service = Executors.newCachedThreadPool();
+
+        Genesis genesis = new Genesis();
+        genesis.prepareGenesis();
+        Block genesisBlock = Genesis.getGenesisBlock();
+
+        Inventory.open();
+        Inventory inventory = new Inventory();
+        BlockChainExecutor blockChainExecutor = new BlockChainExecutor();
+        blockChainExecutor.setMiner(new Miner());
+        blockChainExecutor.setInventory(inventory);
+        blockChainExecutor.setUtxos(new UtxoCache(CHAINSTATE_DIR));
+
+        inventory.blocks.put(genesisBlock.getId(), genesisBlock.getOriginal());
+        blockChainExecutor.processBlock(genesisBlock.getOriginal(), genesisBlock.getPreviousHash());
+        if (!blockChainExecutor.restore()) {
+            blockChainExecutor.replayStoredBlocks();
+        }
+
+        int count;
+        if ("export".equals(command)) {
+            count = blockChainExecutor.exportChain(new File(path));
+        } else {
+            count = blockChainExecutor.importChain(new File(path));
+        }
+
+        service.shutdownNow();
+        System.exit(count < 0 ? 1 : 0);
+    }
+
     public static ExecutorService getExecutor() {
         return service;
     }
 
+    // For tools running the chain without the node.
+    static void setExecutor(ExecutorService executor) {
+        service = executor;
+    }
+
     public static void notifyReady() {
         ready = true;
     }
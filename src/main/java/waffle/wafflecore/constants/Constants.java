@@ -10,8 +10,41 @@ public final class Constants {
     public static final String ROOT_DIR = System.getProperty("user.dir");
     public static final String DATA_DIR = System.getProperty("user.home") + "/.waffle";
     public static final String LOG_FILE_PATH = DATA_DIR + "/error.log";
+    public static final String BLOCKS_DIR = DATA_DIR + "/blocks";
+    public static final String UNDO_DIR = DATA_DIR + "/undo";
+    public static final String CHAINSTATE_DIR = DATA_DIR + "/chainstate";
+    public static final String HEADERS_DIR = DATA_DIR + "/headers";
+    public static final String TXINDEX_DIR = DATA_DIR + "/txindex";
+    public static final String ADDRESS_INDEX_FILE = DATA_DIR + "/addrindex.dat";
+    public static final String SNAPSHOT_FILE = DATA_DIR + "/snapshot.dat";
+    public static final String CLEAN_SHUTDOWN_FILE = DATA_DIR + "/clean";
+    public static final String MEMORY_POOL_FILE = DATA_DIR + "/mempool.dat";
 
     public static final byte[] EMPTY_BYTES = new byte[32];
     public static final int MAX_BLOCK_SIZE = 1024 * 1024; // 1MB
     public static final int HASH_LENGTH = 32;
+    public static final int FEATURE_BINARY = 1; // Hello feature: peer reads WireCodec frames
+    public static final int FEATURE_DEFLATE = 2; // Hello feature: peer reads FrameCompressor frames
+    public static final int FEATURE_UNAVAILABLE = 4; // Hello feature: peer reads UNAVAILABLE inventory messages
+    public static final int FEATURES = FEATURE_BINARY | FEATURE_DEFLATE | FEATURE_UNAVAILABLE; // Features of this node
+    public static final int DEFLATE_FRAME_BYTES = 4096; // Smallest message deflated for peers
+    public static final int DEFLATE_POOL_SIZE = 4; // Idle deflaters kept for sending threads
+    public static final long BLOCK_SEGMENT_SIZE = 128 * 1024 * 1024; // 128MB
+    public static final long BLOCK_MAP_WINDOW = 16 * 1024 * 1024; // Bytes of a segment mapped at once
+    public static final long FORK_SWEEP_INTERVAL = 60 * 1000; // ms
+    public static final long UTXO_CACHE_BYTES = 64 * 1024 * 1024; // Dirty UTXOs kept before flush
+    public static final int UTXO_FLUSH_BLOCKS = 100; // Blocks connected before flush
+    public static final double TXINDEX_COMPACT_RATIO = 0.5; // Dead share of a txindex segment that gets it compacted
+    public static final int TX_CACHE_SIZE = 100000; // Parsed transactions kept in memory
+    public static final long BLOCK_CACHE_BYTES = 32 * 1024 * 1024; // Blocks kept on heap for peers
+    public static final int BLOCK_READ_AHEAD = 16; // Blocks loaded ahead of a sequential reader
+    public static final long SNAPSHOT_INTERVAL = 10 * 60 * 1000; // ms
+    public static final int SNAPSHOT_CHUNK_OUTPUTS = 65536; // UTXOs per snapshot chunk
+    public static final long MEMORY_POOL_SAVE_INTERVAL = 5 * 60 * 1000; // ms
+    public static final long METRICS_LOG_INTERVAL = 5 * 60 * 1000; // ms
+    public static final long DAMAGED_BLOCK_RETRY_INTERVAL = 60 * 1000; // ms
+    public static final int IMPORT_WINDOW = 256; // Blocks checked ahead of the one being connected
+    public static final int IMPORT_LOG_INTERVAL = 1000; // Blocks between import progress logs
+    public static final long MERKLE_ROOT_TIME = Long.MAX_VALUE; // Default activation of Merkle roots: not scheduled
+    public static final int MERKLE_PARALLEL_LEAVES = 2048; // Level size from which nodes are hashed in parallel
 }
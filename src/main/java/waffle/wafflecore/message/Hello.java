@@ -21,6 +21,8 @@ public class Hello extends Message {
     private ByteArrayWrapper genesisId;
     @JsonProperty("blocks")
     private ArrayList<ByteArrayWrapper> knownBlocks;
+    @JsonProperty("features")
+    private int features; // FEATURE_* bits; absent from peers predating it
 
     public Hello(
         @JsonProperty("peers") ArrayList<String> myPeers,
@@ -48,6 +50,9 @@ public class Hello extends Message {
     public ArrayList<ByteArrayWrapper> getKnownBlocks() {
         return knownBlocks;
     }
+    public int getFeatures() {
+        return features;
+    }
 
     // setter
     public void setMyPeers(ArrayList<String> myPeers) {
@@ -59,4 +64,7 @@ public class Hello extends Message {
     public void setKnownBlocks(ArrayList<ByteArrayWrapper> knownBlocks) {
         this.knownBlocks = knownBlocks;
     }
+    public void setFeatures(int features) {
+        this.features = features;
+    }
 }
@@ -5,9 +5,13 @@ import static waffle.wafflecore.message.type.MessageType.*;
 import static waffle.wafflecore.message.type.InventoryMessageType.*;
 import waffle.wafflecore.message.type.MessageType;
 import waffle.wafflecore.message.type.InventoryMessageType;
+import waffle.wafflecore.model.Block;
+import waffle.wafflecore.model.Transaction;
 import waffle.wafflecore.util.ByteArrayWrapper;
 import waffle.wafflecore.util.MessageUtil;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
@@ -28,6 +32,12 @@ public class InventoryMessage extends Message {
     private boolean isBlock;
     @JsonProperty("data")
     private byte[] data;
+    @JsonIgnore
+    private ByteBuffer dataBuffer; // Data served from storage without copying
+    @JsonIgnore
+    private Block block; // Block in data, decoded once as the message is read
+    @JsonIgnore
+    private ArrayList<Transaction> transactions; // Its transactions as views, if a binary frame gave them
 
     @JsonCreator
     public InventoryMessage(
@@ -72,9 +82,26 @@ public class InventoryMessage extends Message {
     public boolean getIsBlock() {
         return isBlock;
     }
+    @JsonIgnore
     public byte[] getData() {
         return data;
     }
+    @JsonIgnore
+    public Block getBlock() {
+        return block;
+    }
+    @JsonIgnore
+    public ArrayList<Transaction> getTransactions() {
+        return transactions;
+    }
+    // Base64 is streamed from the buffer when the message is serialized.
+    @JsonProperty("data")
+    public ByteBuffer getDataBuffer() {
+        if (dataBuffer != null) {
+            return dataBuffer.duplicate();
+        }
+        return data == null ? null : ByteBuffer.wrap(data);
+    }
 
     // setter
     public void setInventoryMessageType(InventoryMessageType inventoryMessageType) {
@@ -88,5 +115,23 @@ public class InventoryMessage extends Message {
     }
     public void setData(byte[] data) {
         this.data = data;
+        this.dataBuffer = null;
+        this.block = null;
+        this.transactions = null;
+    }
+    @JsonIgnore
+    public void setDataBuffer(ByteBuffer dataBuffer) {
+        this.data = null;
+        this.dataBuffer = dataBuffer;
+        this.block = null;
+        this.transactions = null;
+    }
+    @JsonIgnore
+    public void setBlock(Block block) {
+        this.block = block;
+    }
+    @JsonIgnore
+    public void setTransactions(ArrayList<Transaction> transactions) {
+        this.transactions = transactions;
     }
 }
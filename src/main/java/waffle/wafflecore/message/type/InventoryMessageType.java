@@ -1,5 +1,5 @@
 package waffle.wafflecore.message.type;
 
 public enum InventoryMessageType {
-    ADVERTISE, REQUEST, CONTENT
+    ADVERTISE, REQUEST, CONTENT, UNAVAILABLE
 }
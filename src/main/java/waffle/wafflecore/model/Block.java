@@ -37,6 +37,8 @@ public class Block {
     private ArrayList<Transaction> parsedTransactions;
     @JsonIgnore
     private double totalDifficulty;
+    @JsonIgnore
+    private ArrayList<TransactionOutput> spentOutputs; // Undo data, set once block is run
 
     public Block() {
         this.original = null;
@@ -51,6 +53,18 @@ public class Block {
         this.height = 0;
         this.parsedTransactions = null;
         this.totalDifficulty = 0;
+        this.spentOutputs = null;
+    }
+
+    /**
+     *  Drop body and parsed forms, leaving header fields and undo data.
+     *  Body can be rebuilt from the block bytes kept in Inventory.
+     */
+    public void compact() {
+        this.original = null;
+        this.transactionIds = null;
+        this.transactions = null;
+        this.parsedTransactions = null;
     }
 
     public String toJson() {
@@ -105,6 +119,9 @@ public class Block {
     public double getTotalDifficulty() {
         return totalDifficulty;
     }
+    public ArrayList<TransactionOutput> getSpentOutputs() {
+        return spentOutputs;
+    }
 
     // setter
     public void setOriginal(byte[] original) {
@@ -143,4 +160,7 @@ public class Block {
     public void setTotalDifficulty(double totalDifficulty) {
         this.totalDifficulty = totalDifficulty;
     }
+    public void setSpentOutputs(ArrayList<TransactionOutput> spentOutputs) {
+        this.spentOutputs = spentOutputs;
+    }
 }
@@ -35,6 +35,8 @@ public abstract class BlockMixIn {
     private ArrayList<Transaction> parsedTransactions;
     @JsonIgnore
     private double totalDifficulty;
+    @JsonIgnore
+    private ArrayList<TransactionOutput> spentOutputs;
 
     @JsonCreator
     public BlockMixIn(
@@ -60,4 +62,5 @@ public abstract class BlockMixIn {
     @JsonIgnore abstract int getHeight();
     @JsonIgnore abstract ArrayList<Transaction> getParsedTransactions();
     @JsonIgnore abstract double getTotalDifficulty();
+    @JsonIgnore abstract ArrayList<TransactionOutput> getSpentOutputs();
 }
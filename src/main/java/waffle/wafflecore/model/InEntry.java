@@ -19,6 +19,13 @@ public class InEntry {
     @JsonProperty("sig")
     private byte[] signature;
 
+    public InEntry() {
+        this.transactionId = null;
+        this.outEntryIndex = 0;
+        this.publicKey = null;
+        this.signature = null;
+    }
+
     public InEntry(
         ByteArrayWrapper transactionId,
         short outEntryIndex,
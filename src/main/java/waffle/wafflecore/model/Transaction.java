@@ -24,6 +24,10 @@ public class Transaction {
     private ArrayList<OutEntry> outEntries;
     @JsonIgnore
     private TransactionExecInfo execInfo;
+    @JsonIgnore
+    private byte[] signHash; // Set by TransactionUtil.getSignHash
+    @JsonIgnore
+    private TransactionView view; // Compact copy of the fields; entries are built from it when asked for
 
     public Transaction() {
         this.original = null;
@@ -32,6 +36,8 @@ public class Transaction {
         this.inEntries = null;
         this.outEntries = null;
         this.execInfo = null;
+        this.signHash = null;
+        this.view = null;
     }
 
     public Transaction(
@@ -76,14 +82,28 @@ public class Transaction {
         return timestamp;
     }
     public ArrayList<InEntry> getInEntries() {
+        if (inEntries == null && view != null) {
+            inEntries = view.getInEntries();
+        }
         return inEntries;
     }
     public ArrayList<OutEntry> getOutEntries() {
+        if (outEntries == null && view != null) {
+            outEntries = view.getOutEntries();
+        }
         return outEntries;
     }
     public TransactionExecInfo getExecInfo() {
         return execInfo;
     }
+    @JsonIgnore
+    public byte[] getSignHash() {
+        return signHash;
+    }
+    @JsonIgnore
+    public TransactionView getView() {
+        return view;
+    }
 
     // setter
     public void setOriginal(byte[] original) {
@@ -97,11 +117,21 @@ public class Transaction {
     }
     public void setInEntries(ArrayList<InEntry> inEntries) {
         this.inEntries = inEntries;
+        this.view = null;
     }
     public void setOutEntries(ArrayList<OutEntry> outEntries) {
         this.outEntries = outEntries;
+        this.view = null;
     }
     public void setExecInfo(TransactionExecInfo execInfo) {
         this.execInfo = execInfo;
     }
+    @JsonIgnore
+    public void setSignHash(byte[] signHash) {
+        this.signHash = signHash;
+    }
+    @JsonIgnore
+    public void setView(TransactionView view) {
+        this.view = view;
+    }
 }
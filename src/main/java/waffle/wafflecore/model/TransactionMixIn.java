@@ -21,6 +21,10 @@ public abstract class TransactionMixIn {
     private ArrayList<OutEntry> outEntries;
     @JsonIgnore
     private TransactionExecInfo execInfo;
+    @JsonIgnore
+    private byte[] signHash;
+    @JsonIgnore
+    private TransactionView view;
 
     @JsonCreator
     public TransactionMixIn(
@@ -36,4 +40,6 @@ public abstract class TransactionMixIn {
     @JsonProperty("in") abstract ArrayList<InEntry> getInEntries();
     @JsonProperty("out") abstract ArrayList<OutEntry> getOutEntries();
     @JsonIgnore abstract TransactionExecInfo getExecInfo();
+    @JsonIgnore abstract byte[] getSignHash();
+    @JsonIgnore abstract TransactionView getView();
 }
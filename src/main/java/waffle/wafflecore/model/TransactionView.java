@@ -0,0 +1,269 @@
+package waffle.wafflecore.model;
+
+import waffle.wafflecore.util.ByteArrayWrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ *  Read-only transaction fields in one compact buffer, decoded once from
+ *  the JSON. This is a copy of the transaction, not a view of its wire
+ *  bytes. Fixed size fields are returned as primitives and byte strings
+ *  as buffers over the compact buffer, so reading a field copies no bytes.
+ *
+ *  Layout:
+ *  | timestamp (8) | in count (4) | out count (4) | ins | outs | bytes |
+ *  In:  | txid offset (4) length (4) | out index (2) | pub offset (4) length (4) | sig offset (4) length (4) |
+ *  Out: | amount (8) | to offset (4) length (4) |
+ *  Counts and lengths are -1 for null. Offsets are into bytes.
+ */
+public class TransactionView {
+    private static final int HEADER_SIZE = Long.BYTES + Integer.BYTES * 2;
+    private static final int IN_SIZE = Integer.BYTES * 6 + Short.BYTES;
+    private static final int OUT_SIZE = Long.BYTES + Integer.BYTES * 2;
+
+    private static final int IN_TXID = 0;
+    private static final int IN_OUTIDX = Integer.BYTES * 2;
+    private static final int IN_PUB = IN_OUTIDX + Short.BYTES;
+    private static final int IN_SIG = IN_PUB + Integer.BYTES * 2;
+    private static final int OUT_AMOUNT = 0;
+    private static final int OUT_TO = Long.BYTES;
+
+    private final ByteBuffer buf;
+    private final int outsStart;
+    private final int bytesStart;
+
+    private TransactionView(byte[] layout) {
+        this.buf = ByteBuffer.wrap(layout);
+        this.outsStart = HEADER_SIZE + Math.max(0, getInCount()) * IN_SIZE;
+        this.bytesStart = outsStart + Math.max(0, getOutCount()) * OUT_SIZE;
+    }
+
+    // getter
+    public long getTimestamp() {
+        return buf.getLong(0);
+    }
+    public int getInCount() {
+        return buf.getInt(Long.BYTES);
+    }
+    public int getOutCount() {
+        return buf.getInt(Long.BYTES + Integer.BYTES);
+    }
+    public ByteBuffer getInTransactionId(int i) {
+        return slice(in(i) + IN_TXID);
+    }
+    public short getInOutIndex(int i) {
+        return buf.getShort(in(i) + IN_OUTIDX);
+    }
+    public ByteBuffer getInPublicKey(int i) {
+        return slice(in(i) + IN_PUB);
+    }
+    public ByteBuffer getInSignature(int i) {
+        return slice(in(i) + IN_SIG);
+    }
+    public long getOutAmount(int i) {
+        return buf.getLong(out(i) + OUT_AMOUNT);
+    }
+    public ByteBuffer getOutRecipient(int i) {
+        return slice(out(i) + OUT_TO);
+    }
+    public int getOutRecipientLength(int i) {
+        return buf.getInt(out(i) + OUT_TO + Integer.BYTES);
+    }
+    public int size() {
+        return buf.capacity();
+    }
+
+    /**
+     *  Array the fields live in, for lookups which compare a byte string
+     *  where it lies instead of slicing it.
+     */
+    public byte[] array() {
+        return buf.array();
+    }
+    // Offset into array() of in-entry i's transaction id.
+    public int getInTransactionIdOffset(int i) {
+        return bytesStart + buf.getInt(in(i) + IN_TXID);
+    }
+    public int getInTransactionIdLength(int i) {
+        return buf.getInt(in(i) + IN_TXID + Integer.BYTES);
+    }
+
+    /**
+     *  Whether in-entry i spends txo.
+     */
+    public boolean spends(int i, TransactionOutput txo) {
+        if (getInOutIndex(i) != txo.getOutIndex()) {
+            return false;
+        }
+        int pos = in(i) + IN_TXID;
+        int offset = bytesStart + buf.getInt(pos);
+        int length = buf.getInt(pos + Integer.BYTES);
+        byte[] txId = txo.getTransactionId().getBytes();
+        if (length != txId.length) {
+            return false;
+        }
+        for (int j = 0; j < length; j++) {
+            if (buf.get(offset + j) != txId[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] copyOutRecipient(int i) {
+        return copy(out(i) + OUT_TO);
+    }
+
+    /**
+     *  In-entries as objects, for code which needs them.
+     */
+    public ArrayList<InEntry> getInEntries() {
+        if (getInCount() < 0) {
+            return null;
+        }
+
+        ArrayList<InEntry> inEntries = new ArrayList<InEntry>(getInCount());
+        for (int i = 0; i < getInCount(); i++) {
+            byte[] txId = copy(in(i) + IN_TXID);
+            inEntries.add(new InEntry(
+                txId == null ? null : new ByteArrayWrapper(txId),
+                getInOutIndex(i),
+                copy(in(i) + IN_PUB),
+                copy(in(i) + IN_SIG)));
+        }
+        return inEntries;
+    }
+
+    public ArrayList<OutEntry> getOutEntries() {
+        if (getOutCount() < 0) {
+            return null;
+        }
+
+        ArrayList<OutEntry> outEntries = new ArrayList<OutEntry>(getOutCount());
+        for (int i = 0; i < getOutCount(); i++) {
+            outEntries.add(new OutEntry(copyOutRecipient(i), getOutAmount(i)));
+        }
+        return outEntries;
+    }
+
+    private int in(int i) {
+        return HEADER_SIZE + i * IN_SIZE;
+    }
+
+    private int out(int i) {
+        return outsStart + i * OUT_SIZE;
+    }
+
+    // Byte string whose offset and length are at pos, or null.
+    private ByteBuffer slice(int pos) {
+        int length = buf.getInt(pos + Integer.BYTES);
+        if (length < 0) {
+            return null;
+        }
+        return ByteBuffer.wrap(buf.array(), bytesStart + buf.getInt(pos), length).slice();
+    }
+
+    private byte[] copy(int pos) {
+        int length = buf.getInt(pos + Integer.BYTES);
+        if (length < 0) {
+            return null;
+        }
+        int offset = bytesStart + buf.getInt(pos);
+        return Arrays.copyOfRange(buf.array(), offset, offset + length);
+    }
+
+    /**
+     *  Collects fields in any order and lays them out once complete.
+     *  Byte strings are written to bytes() and referenced by offset and
+     *  length, -1 for null.
+     */
+    public static class Builder {
+        private long timestamp = 0;
+        private int inCount = -1;
+        private int outCount = -1;
+        private ByteBuffer ins = ByteBuffer.allocate(IN_SIZE * 4);
+        private ByteBuffer outs = ByteBuffer.allocate(OUT_SIZE * 4);
+        private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        public void setTimestamp(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        public void setInEntriesPresent() {
+            inCount = Math.max(inCount, 0);
+        }
+
+        public void setOutEntriesPresent() {
+            outCount = Math.max(outCount, 0);
+        }
+
+        // Entries read so far are dropped; bytes they refer to stay unused.
+        public void clearInEntries() {
+            inCount = -1;
+            ins.clear();
+        }
+
+        public void clearOutEntries() {
+            outCount = -1;
+            outs.clear();
+        }
+
+        public ByteArrayOutputStream bytes() {
+            return bytes;
+        }
+
+        // Offset of the next byte string written.
+        public int position() {
+            return bytes.size();
+        }
+
+        public int write(byte[] data) {
+            int offset = bytes.size();
+            if (data != null) {
+                bytes.write(data, 0, data.length);
+            }
+            return offset;
+        }
+
+        public void addIn(int txIdOffset, int txIdLength, short outIndex,
+            int pubOffset, int pubLength, int sigOffset, int sigLength)
+        {
+            setInEntriesPresent();
+            ins = ensure(ins, IN_SIZE);
+            ins.putInt(txIdOffset).putInt(txIdLength)
+                .putShort(outIndex)
+                .putInt(pubOffset).putInt(pubLength)
+                .putInt(sigOffset).putInt(sigLength);
+            inCount++;
+        }
+
+        public void addOut(long amount, int toOffset, int toLength) {
+            setOutEntriesPresent();
+            outs = ensure(outs, OUT_SIZE);
+            outs.putLong(amount).putInt(toOffset).putInt(toLength);
+            outCount++;
+        }
+
+        public TransactionView build() {
+            byte[] layout = new byte[HEADER_SIZE + ins.position() + outs.position() + bytes.size()];
+            ByteBuffer buf = ByteBuffer.wrap(layout);
+            buf.putLong(timestamp).putInt(inCount).putInt(outCount);
+            buf.put(ins.array(), 0, ins.position());
+            buf.put(outs.array(), 0, outs.position());
+            buf.put(bytes.toByteArray());
+            return new TransactionView(layout);
+        }
+
+        private static ByteBuffer ensure(ByteBuffer buf, int size) {
+            if (buf.remaining() >= size) {
+                return buf;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(buf.capacity() * 2);
+            grown.put(buf.array(), 0, buf.position());
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package waffle.wafflecore.store;
+
+import static waffle.wafflecore.constants.Constants.*;
+import waffle.wafflecore.model.TransactionOutput;
+import waffle.wafflecore.util.ByteArrayWrapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *  Unspent outpoints and balance of every recipient.
+ *  Outpoints are kept sorted so a page continues after the last outpoint
+ *  of the previous one. Amounts are read from the UTXO set on query.
+ *
+ *  File layout:
+ *  | tip id (32) | account count (4) | accounts |
+ *  Account:
+ *  | recipient (32) | balance (8) | outpoint count (4) | txid (32) out index (2) ... |
+ */
+public class AddressIndex {
+    private static final int KEY_SIZE = HASH_LENGTH + Short.BYTES;
+
+    // key: recipient
+    private ConcurrentHashMap<ByteArrayWrapper, Account> accounts = new ConcurrentHashMap<ByteArrayWrapper, Account>();
+
+    private static class Account {
+        private long balance = 0;
+        private TreeSet<ByteArrayWrapper> outpoints = new TreeSet<ByteArrayWrapper>();
+    }
+
+    private static ByteArrayWrapper key(ByteArrayWrapper txId, short outIndex) {
+        byte[] key = new byte[KEY_SIZE];
+        ByteBuffer.wrap(key).put(txId.getBytes()).putShort(outIndex);
+        return new ByteArrayWrapper(key);
+    }
+
+    public void add(TransactionOutput txo) {
+        Account account = accounts.computeIfAbsent(new ByteArrayWrapper(txo.getRecipient()), x -> new Account());
+        synchronized (account) {
+            if (account.outpoints.add(key(txo.getTransactionId(), txo.getOutIndex()))) {
+                account.balance += txo.getAmount();
+            }
+        }
+    }
+
+    public void remove(TransactionOutput txo) {
+        ByteArrayWrapper recipient = new ByteArrayWrapper(txo.getRecipient());
+        Account account = accounts.get(recipient);
+        if (account == null) {
+            return;
+        }
+
+        synchronized (account) {
+            if (account.outpoints.remove(key(txo.getTransactionId(), txo.getOutIndex()))) {
+                account.balance -= txo.getAmount();
+            }
+            if (account.outpoints.isEmpty()) {
+                accounts.remove(recipient, account);
+            }
+        }
+    }
+
+    public long getBalance(ByteArrayWrapper recipient) {
+        Account account = accounts.get(recipient);
+        if (account == null) {
+            return 0;
+        }
+
+        synchronized (account) {
+            return account.balance;
+        }
+    }
+
+    /**
+     *  Up to limit outputs of recipient following after, or from the
+     *  first one if after is null.
+     */
+    public ArrayList<TransactionOutput> getOutputs(ByteArrayWrapper recipient, TransactionOutput after, int limit, UtxoCache utxos) {
+        ArrayList<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
+        Account account = accounts.get(recipient);
+        if (account == null) {
+            return outputs;
+        }
+
+        ArrayList<ByteArrayWrapper> keys = new ArrayList<ByteArrayWrapper>();
+        synchronized (account) {
+            Iterable<ByteArrayWrapper> page = after == null ? account.outpoints :
+                account.outpoints.tailSet(key(after.getTransactionId(), after.getOutIndex()), false);
+            for (ByteArrayWrapper key : page) {
+                if (keys.size() >= limit) {
+                    break;
+                }
+                keys.add(key);
+            }
+        }
+
+        for (ByteArrayWrapper key : keys) {
+            ByteBuffer buf = ByteBuffer.wrap(key.getBytes());
+            byte[] txId = new byte[HASH_LENGTH];
+            buf.get(txId);
+            TransactionOutput txo = utxos.get(new ByteArrayWrapper(txId), buf.getShort());
+            if (txo != null) {
+                outputs.add(txo);
+            }
+        }
+        return outputs;
+    }
+
+    public void clear() {
+        accounts.clear();
+    }
+
+    public int size() {
+        return accounts.size();
+    }
+
+    /**
+     *  Write index as of tipId. Replaced atomically.
+     */
+    public void save(File file, ByteArrayWrapper tipId) {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tmp);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+                out.write(tipId.getBytes());
+                out.writeInt(accounts.size());
+                for (Map.Entry<ByteArrayWrapper, Account> entry : accounts.entrySet()) {
+                    Account account = entry.getValue();
+                    synchronized (account) {
+                        out.write(entry.getKey().getBytes());
+                        out.writeLong(account.balance);
+                        out.writeInt(account.outpoints.size());
+                        for (ByteArrayWrapper key : account.outpoints) {
+                            out.write(key.getBytes());
+                        }
+                    }
+                }
+                out.flush();
+                fos.getChannel().force(true);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  Read index saved by save. Returns the tip it was saved at, or null
+     *  if there is no usable file; the index is then left empty.
+     */
+    public ByteArrayWrapper load(File file) {
+        clear();
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            byte[] tipId = new byte[HASH_LENGTH];
+            in.readFully(tipId);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] recipient = new byte[HASH_LENGTH];
+                in.readFully(recipient);
+                Account account = new Account();
+                account.balance = in.readLong();
+                int outpoints = in.readInt();
+                for (int j = 0; j < outpoints; j++) {
+                    byte[] key = new byte[KEY_SIZE];
+                    in.readFully(key);
+                    account.outpoints.add(new ByteArrayWrapper(key));
+                }
+                accounts.put(new ByteArrayWrapper(recipient), account);
+            }
+            return new ByteArrayWrapper(tipId);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        clear();
+        return null;
+    }
+}
@@ -0,0 +1,615 @@
+package waffle.wafflecore.store;
+
+import static waffle.wafflecore.constants.Constants.*;
+import waffle.wafflecore.util.ByteArrayWrapper;
+import waffle.wafflecore.tool.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *  Block bytes in append-only segment files with an in-memory
+ *  id -> (segment, offset, length) index rebuilt from record headers on open.
+ *  Reads are served from memory-mapped windows of segments.
+ *  With a dictionary, data is stored deflated, one stream per record so
+ *  each record decodes on its own. The dictionary is saved with the
+ *  store on first use and never changes afterwards.
+ *
+ *  Record layout:
+ *  | type (1) | length (4) | id (32) | data (length) |
+ *  Deflated data:
+ *  | raw length (4) | deflate stream |
+ *  Removed data:
+ *  | segment of removed record (4) |
+ */
+public class BlockStore {
+    private static Logger logger = Logger.getInstance();
+
+    private static final byte RECORD_BLOCK = 1;
+    private static final byte RECORD_REMOVED = 2;
+    private static final byte RECORD_DEFLATED = 3;
+    private static final int HEADER_SIZE = 1 + Integer.BYTES + HASH_LENGTH;
+
+    private File dir;
+    private CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<Segment>();
+    private ConcurrentHashMap<ByteArrayWrapper, Location> index = new ConcurrentHashMap<ByteArrayWrapper, Location>();
+    // key: segment and offset / value: id, in write order
+    private ConcurrentSkipListMap<Long, ByteArrayWrapper> order = new ConcurrentSkipListMap<Long, ByteArrayWrapper>();
+
+    private byte[] dictionary; // null stores data as is
+    private ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater());
+    private ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater());
+
+    public static class Location {
+        private final int segment;
+        private final int offset; // offset of data, not of record header
+        private final int length;
+        private final boolean deflated;
+
+        public Location(int segment, int offset, int length, boolean deflated) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.deflated = deflated;
+        }
+
+        public int getSegment() {
+            return segment;
+        }
+        public int getOffset() {
+            return offset;
+        }
+        public int getLength() {
+            return length;
+        }
+        public boolean isDeflated() {
+            return deflated;
+        }
+
+        private long position() {
+            return ((long) segment << 32) | offset;
+        }
+    }
+
+    private static class Segment {
+        private FileChannel channel;
+        private HashMap<Integer, MappedByteBuffer> windows = new HashMap<Integer, MappedByteBuffer>();
+        private volatile long size;
+        private volatile long live; // bytes of records still indexed
+        private volatile boolean synced = true;
+
+        private Segment(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            size = channel.size();
+        }
+
+        // View of length bytes at offset. Windows start every BLOCK_MAP_WINDOW
+        // bytes and reach a block further, so a record is always inside the
+        // window of its offset. Only the window at the end of the segment is
+        // mapped again as records are appended to it.
+        synchronized private ByteBuffer slice(long offset, int length) throws IOException {
+            int number = (int) (offset / BLOCK_MAP_WINDOW);
+            long start = number * BLOCK_MAP_WINDOW;
+            MappedByteBuffer map = windows.get(number);
+            if (map == null || start + map.capacity() < offset + length) {
+                long end = Math.min(size, Math.max(start + BLOCK_MAP_WINDOW + MAX_BLOCK_SIZE, offset + length));
+                map = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                windows.put(number, map);
+            }
+
+            ByteBuffer view = map.duplicate();
+            view.position((int) (offset - start));
+            view.limit((int) (offset - start) + length);
+            return view.slice().asReadOnlyBuffer();
+        }
+    }
+
+    public BlockStore(String path) {
+        this(path, null);
+    }
+
+    /**
+     *  Store which deflates new records with dictionary.
+     *  A dictionary already saved in path is used instead, also when
+     *  dictionary is null, so deflated records always stay readable.
+     */
+    public BlockStore(String path, byte[] dictionary) {
+        dir = new File(path);
+        dir.mkdirs();
+
+        this.dictionary = loadDictionary(dictionary);
+
+        // Pruned segments leave gaps in numbering; they are kept as null.
+        int last = -1;
+        String[] names = dir.list();
+        for (String name : names == null ? new String[0] : names) {
+            if (name.matches("blk\\d{5}\\.dat")) {
+                last = Math.max(last, Integer.parseInt(name.substring(3, 8)));
+            }
+        }
+
+        try {
+            for (int i = 0; i <= last; i++) {
+                File file = segmentFile(i);
+                if (!file.exists()) {
+                    segments.add(null);
+                    continue;
+                }
+                Segment segment = new Segment(file);
+                segments.add(segment);
+                scan(i, segment);
+            }
+            if (segments.size() == 0) {
+                segments.add(new Segment(segmentFile(0)));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        logger.log("Block store opened: " + index.size() + " blocks in " + segments.size() + " segments.");
+    }
+
+    private File segmentFile(int number) {
+        return new File(dir, String.format("blk%05d.dat", number));
+    }
+
+    // Rebuild index entries from record headers. A torn tail is cut off.
+    private void scan(int number, Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long pos = 0;
+        while (pos + HEADER_SIZE <= segment.size) {
+            header.clear();
+            segment.channel.read(header, pos);
+            header.flip();
+
+            byte type = header.get();
+            int length = header.getInt();
+            byte[] id = new byte[HASH_LENGTH];
+            header.get(id);
+
+            if ((type != RECORD_BLOCK && type != RECORD_REMOVED && type != RECORD_DEFLATED) ||
+                length < 0 || pos + HEADER_SIZE + length > segment.size) {
+                break;
+            }
+
+            ByteArrayWrapper key = new ByteArrayWrapper(id);
+            if (type != RECORD_REMOVED) {
+                index(key, new Location(number, (int) (pos + HEADER_SIZE), length, type == RECORD_DEFLATED));
+            } else {
+                unindex(key);
+            }
+            pos += HEADER_SIZE + length;
+        }
+
+        if (pos != segment.size) {
+            logger.log("Truncating torn block segment " + number + " at " + pos);
+            segment.channel.truncate(pos);
+            segment.size = pos;
+        }
+    }
+
+    public boolean containsKey(ByteArrayWrapper id) {
+        return index.containsKey(id);
+    }
+
+    /**
+     *  Read-only view of block bytes in the mapped segment. Nothing is
+     *  copied unless the record is deflated.
+     */
+    public ByteBuffer getBuffer(ByteArrayWrapper id) {
+        Location loc = index.get(id);
+        if (loc == null) {
+            return null;
+        }
+
+        ByteBuffer stored = stored(loc);
+        if (stored == null || !loc.deflated) {
+            return stored;
+        }
+
+        byte[] data = inflate(stored);
+        return data == null ? null : ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    /**
+     *  Copy of block bytes on heap.
+     */
+    public byte[] get(ByteArrayWrapper id) {
+        Location loc = index.get(id);
+        if (loc == null) {
+            return null;
+        }
+
+        ByteBuffer stored = stored(loc);
+        if (stored == null) {
+            return null;
+        }
+        if (loc.deflated) {
+            return inflate(stored);
+        }
+
+        byte[] data = new byte[stored.remaining()];
+        stored.get(data);
+        return data;
+    }
+
+    private ByteBuffer stored(Location loc) {
+        Segment segment = segments.get(loc.segment);
+        if (segment == null) {
+            return null;
+        }
+
+        try {
+            return segment.slice(loc.offset, loc.length);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    private byte[] deflate(byte[] data) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(dictionary);
+        deflater.setInput(data);
+        deflater.finish();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + Integer.BYTES);
+        byte[] buf = new byte[8192];
+        out.write(ByteBuffer.allocate(Integer.BYTES).putInt(data.length).array(), 0, Integer.BYTES);
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+
+        return out.toByteArray();
+    }
+
+    private byte[] inflate(ByteBuffer stored) {
+        byte[] input = new byte[stored.remaining() - Integer.BYTES];
+        int length = stored.getInt();
+        stored.get(input);
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(input);
+
+        byte[] data = new byte[length];
+        try {
+            int n = 0;
+            while (n < length) {
+                int read = inflater.inflate(data, n, length - n);
+                if (read == 0) {
+                    if (!inflater.needsDictionary() || dictionary == null) {
+                        break;
+                    }
+                    inflater.setDictionary(dictionary);
+                }
+                n += read;
+            }
+            if (n != length) {
+                logger.log("Truncated deflated record");
+                return null;
+            }
+        } catch (DataFormatException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        return data;
+    }
+
+    private byte[] loadDictionary(byte[] trained) {
+        File file = new File(dir, "deflate.dict");
+        try {
+            if (file.exists()) {
+                return Files.readAllBytes(file.toPath());
+            }
+            if (trained == null) {
+                return null;
+            }
+
+            File tmp = new File(dir, "deflate.dict.tmp");
+            try (FileChannel channel = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                channel.write(ByteBuffer.wrap(trained));
+                channel.force(true);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return trained;
+    }
+
+    synchronized public void put(ByteArrayWrapper id, byte[] data) {
+        if (index.containsKey(id)) {
+            return;
+        }
+
+        Location loc = dictionary == null ?
+            append(RECORD_BLOCK, id, data) : append(RECORD_DEFLATED, id, deflate(data));
+        if (loc != null) {
+            index(id, loc);
+        }
+    }
+
+    synchronized public void remove(ByteArrayWrapper id) {
+        Location loc = unindex(id);
+        if (loc != null) {
+            append(RECORD_REMOVED, id, ByteBuffer.allocate(Integer.BYTES).putInt(loc.segment).array());
+        }
+    }
+
+    private void index(ByteArrayWrapper id, Location loc) {
+        Location old = index.put(id, loc);
+        if (old != null) {
+            order.remove(old.position());
+            account(old, -1);
+        }
+        order.put(loc.position(), id);
+        account(loc, 1);
+    }
+
+    private Location unindex(ByteArrayWrapper id) {
+        Location loc = index.remove(id);
+        if (loc != null) {
+            order.remove(loc.position());
+            account(loc, -1);
+        }
+        return loc;
+    }
+
+    private void account(Location loc, int sign) {
+        Segment segment = segments.get(loc.segment);
+        if (segment != null) {
+            segment.live += sign * (long) (HEADER_SIZE + loc.length);
+        }
+    }
+
+    private Location append(byte type, ByteArrayWrapper id, byte[] data) {
+        try {
+            int number = segments.size() - 1;
+            Segment segment = segments.get(number);
+            if (segment.size > 0 && segment.size + HEADER_SIZE + data.length > BLOCK_SEGMENT_SIZE) {
+                number++;
+                segment = new Segment(segmentFile(number));
+                segments.add(segment);
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + data.length);
+            buf.put(type);
+            buf.putInt(data.length);
+            buf.put(id.getBytes());
+            buf.put(data);
+            buf.flip();
+
+            long pos = segment.size;
+            while (buf.hasRemaining()) {
+                segment.channel.write(buf, pos + buf.position());
+            }
+            segment.size += buf.limit();
+            segment.synced = false;
+
+            return new Location(number, (int) (pos + HEADER_SIZE), data.length, type == RECORD_DEFLATED);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     *  Force appended records to disk. Called once per batch of blocks
+     *  rather than once per append.
+     */
+    synchronized public void sync() {
+        for (Segment segment : segments) {
+            if (segment == null || segment.synced) {
+                continue;
+            }
+            try {
+                segment.channel.force(false);
+                segment.synced = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     *  Delete a whole segment file with every record in it.
+     *  The segment being appended to is never deleted.
+     *  Returns bytes freed.
+     */
+    synchronized public long deleteSegment(int number) {
+        Segment segment = segments.get(number);
+        if (segment == null || number == segments.size() - 1) {
+            return 0;
+        }
+
+        getIds(number).forEach(x -> unindex(x));
+        segments.set(number, null);
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        segmentFile(number).delete();
+
+        return segment.size;
+    }
+
+    /**
+     *  Move the records of segment still indexed to the end of the store
+     *  and delete it. A tombstone is carried along while the segment of
+     *  the record it removed is still there, and dropped otherwise.
+     *  The segment being appended to is never compacted.
+     *  Returns bytes freed.
+     */
+    synchronized public long compactSegment(int number) {
+        Segment segment = segments.get(number);
+        if (segment == null || number == segments.size() - 1) {
+            return 0;
+        }
+
+        long before = getDiskSize();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            long pos = 0;
+            while (pos + HEADER_SIZE <= segment.size) {
+                header.clear();
+                segment.channel.read(header, pos);
+                header.flip();
+
+                byte type = header.get();
+                int length = header.getInt();
+                byte[] id = new byte[HASH_LENGTH];
+                header.get(id);
+                ByteArrayWrapper key = new ByteArrayWrapper(id);
+                int offset = (int) (pos + HEADER_SIZE);
+                pos += HEADER_SIZE + length;
+
+                Location loc = index.get(key);
+                boolean live = type != RECORD_REMOVED && loc != null && loc.segment == number && loc.offset == offset;
+                if (!live && type != RECORD_REMOVED) {
+                    continue;
+                }
+
+                ByteBuffer data = ByteBuffer.allocate(length);
+                segment.channel.read(data, offset);
+                if (!live && !hidesOlder(length == Integer.BYTES ? data.getInt(0) : -1, number)) {
+                    continue;
+                }
+
+                Location moved = append(type, key, data.array());
+                if (moved == null) {
+                    return 0;
+                }
+                if (live) {
+                    index(key, moved);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+
+        // Copies must be on disk before the only other copy goes.
+        sync();
+        segments.set(number, null);
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        segmentFile(number).delete();
+
+        return before - getDiskSize();
+    }
+
+    // Whether a tombstone in segment number may still hide a record in an
+    // older segment. Tombstones without a segment may hide any of them.
+    private boolean hidesOlder(int target, int number) {
+        if (target >= 0) {
+            return target < number && segments.get(target) != null;
+        }
+        for (int i = 0; i < number; i++) {
+            if (segments.get(i) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Bytes of segment no longer reachable through the index.
+    public long getDeadBytes(int number) {
+        Segment segment = segments.get(number);
+        return segment == null ? 0 : segment.size - segment.live;
+    }
+
+    public long getSegmentSize(int number) {
+        Segment segment = segments.get(number);
+        return segment == null ? 0 : segment.size;
+    }
+
+    /**
+     *  Ids stored in segment, or null if it was deleted.
+     */
+    public ArrayList<ByteArrayWrapper> getIds(int segment) {
+        if (segments.get(segment) == null) {
+            return null;
+        }
+
+        return new ArrayList<ByteArrayWrapper>(
+            order.subMap((long) segment << 32, (long) (segment + 1) << 32).values());
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    // Bytes of all segment files on disk.
+    public long getDiskSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            if (segment != null) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    public Location getLocation(ByteArrayWrapper id) {
+        return index.get(id);
+    }
+
+    /**
+     *  Stored block ids in the order they were written.
+     */
+    public ArrayList<ByteArrayWrapper> getIds() {
+        return new ArrayList<ByteArrayWrapper>(order.values());
+    }
+
+    /**
+     *  Up to count ids written after id.
+     */
+    public ArrayList<ByteArrayWrapper> nextIds(ByteArrayWrapper id, int count) {
+        ArrayList<ByteArrayWrapper> ids = new ArrayList<ByteArrayWrapper>();
+        Location loc = index.get(id);
+        if (loc == null) {
+            return ids;
+        }
+
+        for (ByteArrayWrapper next : order.tailMap(loc.position(), false).values()) {
+            if (ids.size() >= count) {
+                break;
+            }
+            ids.add(next);
+        }
+        return ids;
+    }
+
+    public int size() {
+        return index.size();
+    }
+}
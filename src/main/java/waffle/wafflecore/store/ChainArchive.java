@@ -0,0 +1,141 @@
+package waffle.wafflecore.store;
+
+import static waffle.wafflecore.constants.Constants.*;
+import waffle.wafflecore.util.ByteArrayWrapper;
+import waffle.wafflecore.tool.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ *  Blocks of a chain in a portable file, lowest first.
+ *  Blocks are kept as received so their ids can be recomputed on import.
+ *
+ *  File layout:
+ *  | magic (4) | version (4) | block count (4) | blocks: length (4) data |
+ */
+public class ChainArchive {
+    private static Logger logger = Logger.getInstance();
+
+    private static final int MAGIC = 0x5743484e; // "WCHN"
+    private static final int VERSION = 1;
+
+    /**
+     *  Write blocks with given ids from store. Replaced atomically.
+     *  Returns false without touching file if some block is not stored.
+     */
+    public static boolean write(File file, List<ByteArrayWrapper> ids, BlockStore store) {
+        File tmp = new File(file.getPath() + ".tmp");
+        boolean complete = true;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 20))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(ids.size());
+                for (ByteArrayWrapper id : ids) {
+                    byte[] data = store.get(id);
+                    if (data == null) {
+                        logger.log("Block not stored, cannot export:" + id.toString());
+                        complete = false;
+                        break;
+                    }
+                    out.writeInt(data.length);
+                    out.write(data);
+                }
+                if (complete) {
+                    out.flush();
+                    fos.getChannel().force(true);
+                }
+            }
+            if (complete) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        tmp.delete();
+        return false;
+    }
+
+    /**
+     *  Open file for streaming. Returns null if it is not an archive
+     *  or its header cannot be read.
+     */
+    public static Reader open(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20));
+            if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                int count = in.readInt();
+                if (count >= 0) {
+                    return new Reader(in, count);
+                }
+                logger.log("Invalid block count " + count);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    public static class Reader implements Closeable {
+        private DataInputStream in;
+        private int count;
+        private int read = 0;
+
+        private Reader(DataInputStream in, int count) {
+            this.in = in;
+            this.count = count;
+        }
+
+        /**
+         *  Next block bytes, or null at the end.
+         *  Throws if the file is truncated or a length is out of range.
+         */
+        public byte[] next() throws IOException {
+            if (read >= count) {
+                return null;
+            }
+
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_BLOCK_SIZE) {
+                throw new IOException("Invalid block length " + length);
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            read++;
+            return data;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
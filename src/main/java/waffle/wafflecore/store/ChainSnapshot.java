@@ -0,0 +1,237 @@
+package waffle.wafflecore.store;
+
+import static waffle.wafflecore.constants.Constants.*;
+import waffle.wafflecore.model.Block;
+import waffle.wafflecore.model.TransactionOutput;
+import waffle.wafflecore.util.BlockUtil;
+import waffle.wafflecore.util.ByteArrayWrapper;
+import waffle.wafflecore.tool.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ *  Chain state at one tip: block headers and the UTXO set.
+ *  Outputs are written in chunks which are decoded in parallel on load.
+ *  The file ends with a SHA-256 of everything before it; nothing is
+ *  returned from a file whose hash does not match.
+ *
+ *  File layout:
+ *  | magic (4) | version (4) | tip id (32) | block count (4) | headers |
+ *  | chunk count (4) | chunks: output count (4) outputs | sha256 (32) |
+ *
+ *  Header: as in BlockUtil.serializeHeader
+ *  Output: txid (32) out index (2) amount (8) recipient (32)
+ */
+public class ChainSnapshot {
+    private static Logger logger = Logger.getInstance();
+
+    private static final int MAGIC = 0x57534e50; // "WSNP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = BlockUtil.HEADER_SIZE;
+    private static final int OUTPUT_SIZE = HASH_LENGTH * 2 + Short.BYTES + Long.BYTES;
+
+    private ByteArrayWrapper tipId;
+    private ArrayList<Block> blocks;
+    private ArrayList<ArrayList<TransactionOutput>> outputs;
+
+    private ChainSnapshot(ByteArrayWrapper tipId, ArrayList<Block> blocks, ArrayList<ArrayList<TransactionOutput>> outputs) {
+        this.tipId = tipId;
+        this.blocks = blocks;
+        this.outputs = outputs;
+    }
+
+    /**
+     *  Headers of given blocks. Cheap enough to call while holding the chain lock.
+     */
+    public static byte[] encodeHeaders(Collection<Block> blocks) {
+        ByteBuffer buf = ByteBuffer.allocate(blocks.size() * HEADER_SIZE);
+        for (Block block : blocks) {
+            BlockUtil.serializeHeader(block, buf);
+        }
+        return buf.array();
+    }
+
+    /**
+     *  Outputs of a cache view, packed into chunks. Needs no chain lock.
+     */
+    public static ArrayList<byte[]> encodeOutputs(UtxoCache.View utxos) {
+        ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+        ByteBuffer[] current = { null };
+        utxos.forEach(x -> {
+            if (current[0] == null || !current[0].hasRemaining()) {
+                current[0] = ByteBuffer.allocate(SNAPSHOT_CHUNK_OUTPUTS * OUTPUT_SIZE);
+                chunks.add(current[0].array());
+            }
+            current[0].put(x.getTransactionId().getBytes());
+            current[0].putShort(x.getOutIndex());
+            current[0].putLong(x.getAmount());
+            current[0].put(x.getRecipient());
+        });
+
+        // Trim the last chunk to what was written.
+        if (current[0] != null && current[0].hasRemaining()) {
+            chunks.set(chunks.size() - 1, Arrays.copyOf(current[0].array(), current[0].position()));
+        }
+        return chunks;
+    }
+
+    /**
+     *  Write to a temporary file and move it over file once synced,
+     *  so a crash never leaves a half written snapshot behind.
+     */
+    public static void write(File file, ByteArrayWrapper tipId, byte[] headers, ArrayList<byte[]> chunks) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            DigestOutputStream digestOut = new DigestOutputStream(new BufferedOutputStream(fos, 1 << 20), digest);
+            try (DataOutputStream out = new DataOutputStream(digestOut)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(tipId.getBytes());
+                out.writeInt(headers.length / HEADER_SIZE);
+                out.write(headers);
+
+                out.writeInt(chunks.size());
+                for (byte[] chunk : chunks) {
+                    out.writeInt(chunk.length / OUTPUT_SIZE);
+                    out.write(chunk);
+                }
+
+                digestOut.on(false);
+                out.write(digest.digest());
+                out.flush();
+                fos.getChannel().force(true);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  Stream the snapshot from file, decoding chunks on pool while the
+     *  next ones are read. Outputs are hashed but not decoded unless
+     *  withOutputs is set.
+     *  Returns null if file is missing or damaged.
+     */
+    public static ChainSnapshot read(File file, ExecutorService pool, boolean withOutputs) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            DigestInputStream digestIn = new DigestInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20), digest);
+            try (DataInputStream in = new DataInputStream(digestIn)) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+
+                byte[] tip = new byte[HASH_LENGTH];
+                in.readFully(tip);
+
+                int blockCount = in.readInt();
+                if (blockCount < 0 || (long) blockCount * HEADER_SIZE > file.length()) {
+                    return null;
+                }
+                byte[] headers = new byte[blockCount * HEADER_SIZE];
+                in.readFully(headers);
+                ArrayList<Block> blocks = decodeHeaders(headers);
+
+                int chunkCount = in.readInt();
+                ArrayList<Future<ArrayList<TransactionOutput>>> decoded = new ArrayList<Future<ArrayList<TransactionOutput>>>();
+                for (int i = 0; i < chunkCount; i++) {
+                    int count = in.readInt();
+                    if (count < 0 || count > SNAPSHOT_CHUNK_OUTPUTS) {
+                        return null;
+                    }
+                    byte[] chunk = new byte[count * OUTPUT_SIZE];
+                    in.readFully(chunk);
+                    if (withOutputs) {
+                        decoded.add(pool.submit(() -> decodeOutputs(chunk)));
+                    }
+                }
+
+                digestIn.on(false);
+                byte[] expected = new byte[HASH_LENGTH];
+                in.readFully(expected);
+                if (!MessageDigest.isEqual(expected, digest.digest())) {
+                    logger.log("Snapshot hash mismatch, ignoring " + file);
+                    decoded.forEach(x -> x.cancel(true));
+                    return null;
+                }
+
+                if (!withOutputs) {
+                    return new ChainSnapshot(new ByteArrayWrapper(tip), blocks, null);
+                }
+                ArrayList<ArrayList<TransactionOutput>> outputs = new ArrayList<ArrayList<TransactionOutput>>();
+                for (Future<ArrayList<TransactionOutput>> chunk : decoded) {
+                    outputs.add(chunk.get());
+                }
+                return new ChainSnapshot(new ByteArrayWrapper(tip), blocks, outputs);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    private static ArrayList<Block> decodeHeaders(byte[] headers) {
+        ArrayList<Block> blocks = new ArrayList<Block>();
+        ByteBuffer buf = ByteBuffer.wrap(headers);
+        while (buf.hasRemaining()) {
+            blocks.add(BlockUtil.deserializeHeader(buf));
+        }
+        return blocks;
+    }
+
+    private static ArrayList<TransactionOutput> decodeOutputs(byte[] chunk) {
+        ArrayList<TransactionOutput> outputs = new ArrayList<TransactionOutput>(chunk.length / OUTPUT_SIZE);
+        ByteBuffer buf = ByteBuffer.wrap(chunk);
+        while (buf.hasRemaining()) {
+            ByteArrayWrapper txId = new ByteArrayWrapper(read(buf, HASH_LENGTH));
+            short outIndex = buf.getShort();
+            long amount = buf.getLong();
+            outputs.add(new TransactionOutput(txId, outIndex, read(buf, HASH_LENGTH), amount));
+        }
+        return outputs;
+    }
+
+    private static byte[] read(ByteBuffer buf, int length) {
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    // getter
+    public ByteArrayWrapper getTipId() {
+        return tipId;
+    }
+    public ArrayList<Block> getBlocks() {
+        return blocks;
+    }
+    public ArrayList<ArrayList<TransactionOutput>> getOutputs() {
+        return outputs;
+    }
+}
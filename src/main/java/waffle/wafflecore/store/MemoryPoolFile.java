@@ -0,0 +1,87 @@
+package waffle.wafflecore.store;
+
+import static waffle.wafflecore.constants.Constants.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ *  Transactions of the memory pool kept across restarts.
+ *  Records are streamed one by one and the list ends with a zero length,
+ *  so neither side needs the count up front.
+ *
+ *  File layout:
+ *  | magic (4) | version (4) | records: length (4) transaction | 0 (4) |
+ */
+public class MemoryPoolFile {
+    private static final int MAGIC = 0x574d504c; // "WMPL"
+    private static final int VERSION = 1;
+
+    /**
+     *  Write serialized transactions. Replaced atomically.
+     */
+    public static void write(File file, Collection<byte[]> txs) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (byte[] tx : txs) {
+                    out.writeInt(tx.length);
+                    out.write(tx);
+                }
+                out.writeInt(0);
+                out.flush();
+                fos.getChannel().force(true);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     *  Serialized transactions in file order. Records up to a damaged or
+     *  missing end are returned; ids are checked when they are parsed.
+     */
+    public static ArrayList<byte[]> read(File file) {
+        ArrayList<byte[]> txs = new ArrayList<byte[]>();
+        if (!file.exists()) {
+            return txs;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return txs;
+            }
+
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_BLOCK_SIZE) {
+                    break;
+                }
+                byte[] tx = new byte[length];
+                in.readFully(tx);
+                txs.add(tx);
+            }
+        } catch (EOFException e) {
+            // Ended early; keep what was read.
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return txs;
+    }
+}
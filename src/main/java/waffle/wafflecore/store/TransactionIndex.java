@@ -0,0 +1,153 @@
+package waffle.wafflecore.store;
+
+import static waffle.wafflecore.constants.Constants.*;
+import waffle.wafflecore.util.ByteArrayWrapper;
+import waffle.wafflecore.tool.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ *  Persistent txid -> (block id, position in block) map of the active chain.
+ *  Records live in a block store keyed by txid. Segments mostly holding
+ *  removed records are compacted on commit. The chain tip the index was
+ *  last complete at is kept in a side file replaced on each commit.
+ *
+ *  Record layout:
+ *  | block id (32) | position (4) |
+ */
+public class TransactionIndex {
+    private static Logger logger = Logger.getInstance();
+
+    private BlockStore store;
+    private File tipFile;
+    private ByteArrayWrapper tipId;
+
+    public static class Entry {
+        private final ByteArrayWrapper blockId;
+        private final int position;
+
+        public Entry(ByteArrayWrapper blockId, int position) {
+            this.blockId = blockId;
+            this.position = position;
+        }
+
+        public ByteArrayWrapper getBlockId() {
+            return blockId;
+        }
+        public int getPosition() {
+            return position;
+        }
+    }
+
+    public TransactionIndex(String dir) {
+        store = new BlockStore(dir);
+        tipFile = new File(dir, "tip.meta");
+        tipId = readTip();
+    }
+
+    public void add(ByteArrayWrapper blockId, ArrayList<ByteArrayWrapper> txIds) {
+        for (int i = 0; i < txIds.size(); i++) {
+            ByteBuffer buf = ByteBuffer.allocate(HASH_LENGTH + Integer.BYTES);
+            buf.put(blockId.getBytes());
+            buf.putInt(i);
+            store.put(txIds.get(i), buf.array());
+        }
+    }
+
+    public void remove(ArrayList<ByteArrayWrapper> txIds) {
+        txIds.forEach(x -> store.remove(x));
+    }
+
+    public Entry get(ByteArrayWrapper txId) {
+        ByteBuffer buf = store.getBuffer(txId);
+        if (buf == null) {
+            return null;
+        }
+
+        byte[] blockId = new byte[HASH_LENGTH];
+        buf.get(blockId);
+        return new Entry(new ByteArrayWrapper(blockId), buf.getInt());
+    }
+
+    // Indexed transaction ids.
+    public ArrayList<ByteArrayWrapper> getIds() {
+        return store.getIds();
+    }
+
+    public ByteArrayWrapper getTipId() {
+        return tipId;
+    }
+
+    /**
+     *  Compact segments mostly holding removed records, sync records
+     *  and mark the index complete up to tipId.
+     */
+    public void commit(ByteArrayWrapper tipId) {
+        compact();
+        store.sync();
+        if (!tipId.equals(this.tipId)) {
+            writeTip(tipId);
+        }
+    }
+
+    private void compact() {
+        long freed = 0;
+        for (int i = 0; i < store.getSegmentCount() - 1; i++) {
+            long size = store.getSegmentSize(i);
+            if (size > 0 && store.getDeadBytes(i) >= size * TXINDEX_COMPACT_RATIO) {
+                freed += store.compactSegment(i);
+            }
+        }
+
+        if (freed > 0) {
+            logger.log("Transaction index compacted: " + freed + " bytes freed.");
+        }
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    private ByteArrayWrapper readTip() {
+        if (!tipFile.exists()) {
+            return null;
+        }
+
+        try {
+            byte[] bytes = Files.readAllBytes(tipFile.toPath());
+            return bytes.length == HASH_LENGTH ? new ByteArrayWrapper(bytes) : null;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    // Replaced atomically so the file never names a half written tip.
+    private void writeTip(ByteArrayWrapper tip) {
+        File tmp = new File(tipFile.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            channel.write(ByteBuffer.wrap(tip.getBytes()));
+            channel.force(true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        try {
+            Files.move(tmp.toPath(), tipFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tipId = tip;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
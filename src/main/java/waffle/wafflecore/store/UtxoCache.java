@@ -0,0 +1,380 @@
+package waffle.wafflecore.store;
+
+import static waffle.wafflecore.constants.Constants.*;
+import waffle.wafflecore.model.TransactionOutput;
+import waffle.wafflecore.model.TransactionView;
+import waffle.wafflecore.util.ByteArrayWrapper;
+import waffle.wafflecore.tool.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.function.Consumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ *  Write-back cache in front of the UTXO table.
+ *  Created and spent outputs stay in memory until a flush, which
+ *  writes them to the table together with the chain tip they belong to.
+ */
+public class UtxoCache {
+    private static Logger logger = Logger.getInstance();
+
+    // Rough heap cost of one dirty entry (key, output, map node).
+    private static final int ENTRY_BYTES = 250;
+    // Marks an output spent since last flush.
+    private static final TransactionOutput SPENT = new TransactionOutput();
+    // Key reused for dirty lookups from a view. The map keeps no reference to it.
+    private static final ThreadLocal<ByteArrayWrapper> probe =
+        ThreadLocal.withInitial(() -> new ByteArrayWrapper(new byte[HASH_LENGTH + Short.BYTES]));
+
+    private UtxoSet table;
+    private File metaFile; // null when nothing is persisted
+    private WriteAheadLog wal;
+    private ByteArrayWrapper tipId; // tip the table was flushed at
+
+    // key: txid + out index / value: output or SPENT
+    private ConcurrentHashMap<ByteArrayWrapper, TransactionOutput> dirty = new ConcurrentHashMap<ByteArrayWrapper, TransactionOutput>();
+    private int blocksSinceFlush = 0;
+    // Read-held by open views, write-held while the table changes.
+    private final ReentrantReadWriteLock frozen = new ReentrantReadWriteLock();
+    // Blocks connected (true) and disconnected (false) since last flush, in order.
+    private ArrayList<Map.Entry<ByteArrayWrapper, Boolean>> blockOps = new ArrayList<Map.Entry<ByteArrayWrapper, Boolean>>();
+
+    /**
+     *  Cache over an off-heap table. Nothing survives a restart.
+     */
+    public UtxoCache() {
+        this.table = new UtxoSet();
+    }
+
+    /**
+     *  Cache over a table persisted in dir.
+     */
+    public UtxoCache(String dir) {
+        File base = new File(dir);
+        base.mkdirs();
+
+        this.metaFile = new File(base, "utxo.meta");
+        this.table = new UtxoSet(new File(base, "utxo.dat"));
+        this.wal = new WriteAheadLog(new File(base, "utxo.wal"));
+        recover();
+        this.tipId = readMeta();
+
+        logger.log("UTXO database opened: " + table.size() + " outputs.");
+    }
+
+    private static ByteArrayWrapper key(ByteArrayWrapper txId, short outIndex) {
+        byte[] key = new byte[HASH_LENGTH + Short.BYTES];
+        ByteBuffer.wrap(key).put(txId.getBytes()).putShort(outIndex);
+        return new ByteArrayWrapper(key);
+    }
+
+    public TransactionOutput get(ByteArrayWrapper txId, short outIndex) {
+        TransactionOutput txo = dirty.get(key(txId, outIndex));
+        if (txo != null) {
+            return txo == SPENT ? null : txo;
+        }
+
+        return table.get(txId, outIndex);
+    }
+
+    /**
+     *  Output spent by in-entry i of view. The table is probed with the
+     *  id where it lies in the view's array; dirty entries are probed
+     *  with a per-thread key the id is copied into.
+     */
+    public TransactionOutput get(TransactionView view, int i) {
+        if (view.getInTransactionIdLength(i) != HASH_LENGTH) {
+            return null;
+        }
+
+        byte[] array = view.array();
+        int offset = view.getInTransactionIdOffset(i);
+        short outIndex = view.getInOutIndex(i);
+        if (!dirty.isEmpty()) {
+            ByteArrayWrapper key = probe.get();
+            byte[] bytes = key.getBytes();
+            System.arraycopy(array, offset, bytes, 0, HASH_LENGTH);
+            bytes[HASH_LENGTH] = (byte) (outIndex >> 8);
+            bytes[HASH_LENGTH + 1] = (byte) outIndex;
+
+            TransactionOutput txo = dirty.get(key);
+            if (txo != null) {
+                return txo == SPENT ? null : txo;
+            }
+        }
+
+        return table.get(array, offset, outIndex);
+    }
+
+    public void put(TransactionOutput txo) {
+        dirty.put(key(txo.getTransactionId(), txo.getOutIndex()), txo);
+    }
+
+    public void remove(TransactionOutput txo) {
+        dirty.put(key(txo.getTransactionId(), txo.getOutIndex()), SPENT);
+    }
+
+    // Outputs visible through the cache. Dirty entries win over the table.
+    public void forEach(Consumer<TransactionOutput> consumer) {
+        forEach(table, dirty, consumer);
+    }
+
+    private static void forEach(UtxoSet table, Map<ByteArrayWrapper, TransactionOutput> dirty, Consumer<TransactionOutput> consumer) {
+        table.forEach(x -> {
+            if (!dirty.containsKey(key(x.getTransactionId(), x.getOutIndex()))) {
+                consumer.accept(x);
+            }
+        });
+        dirty.values().forEach(x -> {
+            if (x != SPENT) {
+                consumer.accept(x);
+            }
+        });
+    }
+
+    /**
+     *  Outputs visible through the cache now, readable after the caller
+     *  lets go of the chain. Dirty entries are copied and the table is
+     *  kept as it is until the view is closed: flushes are postponed,
+     *  and explicit ones wait. Must be closed by the thread opening it.
+     */
+    public View view() {
+        frozen.readLock().lock();
+        return new View(table, new HashMap<ByteArrayWrapper, TransactionOutput>(dirty), frozen.readLock());
+    }
+
+    public static class View {
+        private UtxoSet table;
+        private Map<ByteArrayWrapper, TransactionOutput> dirty;
+        private ReentrantReadWriteLock.ReadLock lock;
+
+        private View(UtxoSet table, Map<ByteArrayWrapper, TransactionOutput> dirty, ReentrantReadWriteLock.ReadLock lock) {
+            this.table = table;
+            this.dirty = dirty;
+            this.lock = lock;
+        }
+
+        public void forEach(Consumer<TransactionOutput> consumer) {
+            UtxoCache.forEach(table, dirty, consumer);
+        }
+
+        public void close() {
+            if (lock != null) {
+                lock.unlock();
+                lock = null;
+            }
+        }
+    }
+
+    public void clear() {
+        frozen.writeLock().lock();
+        try {
+            dirty.clear();
+            table.clear();
+        } finally {
+            frozen.writeLock().unlock();
+        }
+        blocksSinceFlush = 0;
+        blockOps.clear();
+        tipId = null;
+        writeMeta(null);
+        if (wal != null) {
+            try {
+                wal.reset();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void blockConnected(ByteArrayWrapper blockId) {
+        blocksSinceFlush++;
+        blockOps.add(new SimpleEntry<ByteArrayWrapper, Boolean>(blockId, true));
+    }
+
+    public void blockDisconnected(ByteArrayWrapper blockId) {
+        blockOps.add(new SimpleEntry<ByteArrayWrapper, Boolean>(blockId, false));
+    }
+
+    /**
+     *  True once dirty entries outgrow the memory limit or enough
+     *  blocks were connected since the last flush. Never while a view
+     *  is open, so the chain does not wait for it.
+     */
+    public boolean isFlushNeeded() {
+        if (frozen.getReadLockCount() > 0) {
+            return false;
+        }
+        return (long) dirty.size() * ENTRY_BYTES >= UTXO_CACHE_BYTES || blocksSinceFlush >= UTXO_FLUSH_BLOCKS;
+    }
+
+    /**
+     *  Write dirty entries and tip as one batch.
+     *  The batch is committed to the log with a single sync before the
+     *  table is touched, so a crash leaves either the old or the new tip.
+     */
+    synchronized public void flush(ByteArrayWrapper tip) {
+        frozen.writeLock().lock();
+        try {
+            flushLocked(tip);
+        } finally {
+            frozen.writeLock().unlock();
+        }
+    }
+
+    private void flushLocked(ByteArrayWrapper tip) {
+        int count = dirty.size();
+
+        if (wal != null && !logBatch(tip)) {
+            return;
+        }
+
+        // Table is written before an entry leaves the cache so readers always find it.
+        for (Map.Entry<ByteArrayWrapper, TransactionOutput> entry : dirty.entrySet()) {
+            TransactionOutput txo = entry.getValue();
+            if (txo == SPENT) {
+                ByteBuffer key = ByteBuffer.wrap(entry.getKey().getBytes());
+                byte[] txId = new byte[HASH_LENGTH];
+                key.get(txId);
+                table.remove(new ByteArrayWrapper(txId), key.getShort());
+            } else {
+                table.put(txo);
+            }
+            dirty.remove(entry.getKey(), txo);
+        }
+
+        table.force();
+        writeMeta(tip);
+        tipId = tip;
+        blocksSinceFlush = 0;
+        blockOps.clear();
+
+        if (wal != null) {
+            try {
+                wal.reset();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        logger.log("UTXO flushed: " + count + " changes, " + table.size() + " outputs.");
+    }
+
+    private boolean logBatch(ByteArrayWrapper tip) {
+        try {
+            wal.begin(tipId == null ? new ByteArrayWrapper(new byte[HASH_LENGTH]) : tipId);
+            for (Map.Entry<ByteArrayWrapper, Boolean> op : blockOps) {
+                if (op.getValue()) {
+                    wal.connect(op.getKey());
+                } else {
+                    wal.disconnect(op.getKey());
+                }
+            }
+            for (Map.Entry<ByteArrayWrapper, TransactionOutput> entry : dirty.entrySet()) {
+                TransactionOutput txo = entry.getValue();
+                if (txo == SPENT) {
+                    ByteBuffer key = ByteBuffer.wrap(entry.getKey().getBytes());
+                    byte[] txId = new byte[HASH_LENGTH];
+                    key.get(txId);
+                    wal.spend(new ByteArrayWrapper(txId), key.getShort());
+                } else {
+                    wal.put(txo);
+                }
+            }
+            wal.commit(tip);
+            return true;
+        } catch (IOException e) {
+            logger.log("UTXO batch not logged, flush postponed: " + e);
+            e.printStackTrace();
+        }
+
+        // Drop the half-written batch, so the next flush starts a new one.
+        try {
+            wal.reset();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    // Redo a batch which was committed to the log but may not have reached the table.
+    private void recover() {
+        WriteAheadLog.Batch batch = wal.recover();
+        if (batch != null) {
+            batch.getSpent().forEach(x -> table.remove(x.getTransactionId(), x.getOutIndex()));
+            batch.getCreated().forEach(x -> table.put(x));
+            table.force();
+            writeMeta(batch.getTipId());
+
+            logger.log("UTXO batch recovered: " + batch.getConnected().size() + " connected, " +
+                batch.getDisconnected().size() + " disconnected blocks.");
+        }
+
+        try {
+            wal.reset();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private ByteArrayWrapper readMeta() {
+        if (metaFile == null || !metaFile.exists()) {
+            return null;
+        }
+
+        try {
+            byte[] bytes = Files.readAllBytes(metaFile.toPath());
+            return bytes.length == HASH_LENGTH ? ByteArrayWrapper.copyOf(bytes) : null;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    // Meta is replaced atomically so it never names a half written tip.
+    private void writeMeta(ByteArrayWrapper tip) {
+        if (metaFile == null) {
+            return;
+        }
+
+        File tmp = new File(metaFile.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            if (tip != null) {
+                channel.write(ByteBuffer.wrap(tip.getBytes()));
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        try {
+            Files.move(tmp.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Tip the persisted table matches, or null.
+    public ByteArrayWrapper getTipId() {
+        return tipId;
+    }
+
+    public long getDirtyCount() {
+        return dirty.size();
+    }
+}
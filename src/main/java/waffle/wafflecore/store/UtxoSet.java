@@ -0,0 +1,433 @@
+package waffle.wafflecore.store;
+
+import static waffle.wafflecore.constants.Constants.*;
+import waffle.wafflecore.model.TransactionOutput;
+import waffle.wafflecore.util.ByteArrayWrapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ *  Unspent outputs keyed by (transaction id, out index).
+ *  Records are fixed width and live in off-heap slabs as an open
+ *  addressing table with linear probing. Slabs are either direct
+ *  buffers or a memory-mapped file; in the latter case changes are
+ *  durable after force().
+ *
+ *  Record layout:
+ *  | used (1) | txid (32) | outidx (2) | amount (8) | recipient (32) | pad (5) |
+ */
+public class UtxoSet {
+    public static final int RECORD_SIZE = 80;
+    private static final int TXID_OFFSET = 1;
+    private static final int OUTIDX_OFFSET = TXID_OFFSET + HASH_LENGTH;
+    private static final int AMOUNT_OFFSET = OUTIDX_OFFSET + Short.BYTES;
+    private static final int RECIPIENT_OFFSET = AMOUNT_OFFSET + Long.BYTES;
+
+    private static final int SLAB_SHIFT = 16; // 65536 records per slab
+    private static final int SLAB_RECORDS = 1 << SLAB_SHIFT;
+    private static final double LOAD_FACTOR = 0.75;
+
+    private File file; // null when kept off-heap only
+    private ByteBuffer[] slabs;
+    private long capacity; // always a power of two
+    private long size = 0;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public UtxoSet() {
+        this(SLAB_RECORDS);
+    }
+
+    public UtxoSet(long initialCapacity) {
+        long cap = SLAB_RECORDS;
+        while (cap < initialCapacity) {
+            cap <<= 1;
+        }
+        allocate(cap);
+    }
+
+    /**
+     *  Table backed by file. An existing file is opened as is.
+     */
+    public UtxoSet(File file) {
+        this.file = file;
+        if (file.length() < (long) SLAB_RECORDS * RECORD_SIZE) {
+            allocate(SLAB_RECORDS);
+            return;
+        }
+
+        try {
+            map(file.length() / RECORD_SIZE, file, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (long slot = 0; slot < capacity; slot++) {
+            if (isUsed(slot)) {
+                size++;
+            }
+        }
+    }
+
+    public TransactionOutput get(ByteArrayWrapper txId, short outIndex) {
+        lock.readLock().lock();
+        try {
+            long slot = find(txId.getBytes(), outIndex);
+            return slot < 0 ? null : read(slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     *  Output whose transaction id is the HASH_LENGTH bytes of array at offset.
+     */
+    public TransactionOutput get(byte[] array, int offset, short outIndex) {
+        lock.readLock().lock();
+        try {
+            long slot = find(array, offset, outIndex);
+            return slot < 0 ? null : read(slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(ByteArrayWrapper txId, short outIndex) {
+        lock.readLock().lock();
+        try {
+            return find(txId.getBytes(), outIndex) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void put(TransactionOutput txo) {
+        byte[] txId = txo.getTransactionId().getBytes();
+        byte[] recipient = txo.getRecipient();
+        if (txId.length != HASH_LENGTH || recipient == null || recipient.length != HASH_LENGTH) {
+            throw new IllegalArgumentException("Invalid output size.");
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (size + 1 > capacity * LOAD_FACTOR) {
+                resize(capacity << 1);
+            }
+
+            long slot = home(txId, txo.getOutIndex());
+            while (isUsed(slot)) {
+                if (matches(slot, txId, txo.getOutIndex())) {
+                    break;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+            if (!isUsed(slot)) {
+                size++;
+            }
+            write(slot, txId, txo.getOutIndex(), txo.getAmount(), recipient);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(TransactionOutput txo) {
+        remove(txo.getTransactionId(), txo.getOutIndex());
+    }
+
+    public boolean remove(ByteArrayWrapper txId, short outIndex) {
+        lock.writeLock().lock();
+        try {
+            long slot = find(txId.getBytes(), outIndex);
+            if (slot < 0) {
+                return false;
+            }
+
+            // Backward shift deletion keeps probe sequences intact without tombstones.
+            long mask = capacity - 1;
+            long hole = slot;
+            long next = (hole + 1) & mask;
+            while (isUsed(next)) {
+                long h = home(next);
+                boolean movable = hole <= next ? (h <= hole || h > next) : (h <= hole && h > next);
+                if (movable) {
+                    copy(next, hole);
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            slab(hole).put(offset(hole), (byte) 0);
+            size--;
+
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void forEach(Consumer<TransactionOutput> consumer) {
+        lock.readLock().lock();
+        try {
+            for (long slot = 0; slot < capacity; slot++) {
+                if (isUsed(slot)) {
+                    consumer.accept(read(slot));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            allocate(SLAB_RECORDS);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Write mapped slabs to disk. Nothing to do for direct buffers.
+    public void force() {
+        if (file == null) {
+            return;
+        }
+
+        lock.readLock().lock();
+        try {
+            for (ByteBuffer slab : slabs) {
+                ((MappedByteBuffer) slab).force();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Off-heap bytes held by the table.
+    public long getAllocatedBytes() {
+        return capacity * RECORD_SIZE;
+    }
+
+    private void allocate(long cap) {
+        if (file == null) {
+            int slabCount = (int) Math.max(1, cap >> SLAB_SHIFT);
+            slabs = new ByteBuffer[slabCount];
+            for (int i = 0; i < slabCount; i++) {
+                slabs[i] = ByteBuffer.allocateDirect(SLAB_RECORDS * RECORD_SIZE);
+            }
+            capacity = cap;
+        } else {
+            try {
+                map(cap, file, true);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        size = 0;
+    }
+
+    private void map(long cap, File target, boolean empty) throws IOException {
+        try (FileChannel channel = FileChannel.open(target.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            if (empty) {
+                channel.truncate(0);
+            }
+
+            int slabCount = (int) Math.max(1, cap >> SLAB_SHIFT);
+            long slabBytes = (long) SLAB_RECORDS * RECORD_SIZE;
+            slabs = new ByteBuffer[slabCount];
+            for (int i = 0; i < slabCount; i++) {
+                slabs[i] = channel.map(FileChannel.MapMode.READ_WRITE, i * slabBytes, slabBytes);
+            }
+            capacity = cap;
+        }
+    }
+
+    private void resize(long newCapacity) {
+        ByteBuffer[] oldSlabs = slabs;
+        long oldCapacity = capacity;
+
+        // A file is rebuilt next to the old one and swapped in when complete.
+        File tmp = null;
+        if (file == null) {
+            allocate(newCapacity);
+        } else {
+            tmp = new File(file.getPath() + ".resize");
+            try {
+                map(newCapacity, tmp, true);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            size = 0;
+        }
+
+        byte[] txId = new byte[HASH_LENGTH];
+        byte[] recipient = new byte[HASH_LENGTH];
+        for (long oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+            ByteBuffer src = oldSlabs[(int) (oldSlot >> SLAB_SHIFT)];
+            int pos = offset(oldSlot);
+            if (src.get(pos) == 0) {
+                continue;
+            }
+
+            getBytes(src, pos + TXID_OFFSET, txId);
+            getBytes(src, pos + RECIPIENT_OFFSET, recipient);
+            short outIndex = src.getShort(pos + OUTIDX_OFFSET);
+
+            long slot = home(txId, outIndex);
+            while (isUsed(slot)) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            write(slot, txId, outIndex, src.getLong(pos + AMOUNT_OFFSET), recipient);
+            size++;
+        }
+
+        if (tmp != null) {
+            for (ByteBuffer slab : slabs) {
+                ((MappedByteBuffer) slab).force();
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private long find(byte[] txId, short outIndex) {
+        return find(txId, 0, outIndex);
+    }
+
+    private long find(byte[] txId, int offset, short outIndex) {
+        long slot = home(txId, offset, outIndex);
+        while (isUsed(slot)) {
+            if (matches(slot, txId, offset, outIndex)) {
+                return slot;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+
+        return -1;
+    }
+
+    // Transaction ids are already hashes, so their leading bytes are mixed with the index.
+    private long home(byte[] txId, short outIndex) {
+        return home(txId, 0, outIndex);
+    }
+
+    private long home(byte[] txId, int offset, short outIndex) {
+        long prefix = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            prefix = (prefix << 8) | (txId[offset + i] & 0xff);
+        }
+        return home(prefix, outIndex);
+    }
+
+    private long home(long slot) {
+        ByteBuffer buf = slab(slot);
+        int pos = offset(slot);
+        return home(buf.getLong(pos + TXID_OFFSET), buf.getShort(pos + OUTIDX_OFFSET));
+    }
+
+    private long home(long prefix, short outIndex) {
+        long h = prefix ^ (outIndex * 0x9E3779B97F4A7C15L);
+        h ^= (h >>> 29);
+
+        return h & (capacity - 1);
+    }
+
+    private boolean isUsed(long slot) {
+        return slab(slot).get(offset(slot)) != 0;
+    }
+
+    private boolean matches(long slot, byte[] txId, short outIndex) {
+        return matches(slot, txId, 0, outIndex);
+    }
+
+    private boolean matches(long slot, byte[] txId, int offset, short outIndex) {
+        ByteBuffer buf = slab(slot);
+        int pos = offset(slot);
+        if (buf.getShort(pos + OUTIDX_OFFSET) != outIndex) {
+            return false;
+        }
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (buf.get(pos + TXID_OFFSET + i) != txId[offset + i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private TransactionOutput read(long slot) {
+        ByteBuffer buf = slab(slot);
+        int pos = offset(slot);
+        byte[] txId = new byte[HASH_LENGTH];
+        byte[] recipient = new byte[HASH_LENGTH];
+        getBytes(buf, pos + TXID_OFFSET, txId);
+        getBytes(buf, pos + RECIPIENT_OFFSET, recipient);
+
+        return new TransactionOutput(
+            new ByteArrayWrapper(txId),
+            buf.getShort(pos + OUTIDX_OFFSET),
+            recipient,
+            buf.getLong(pos + AMOUNT_OFFSET));
+    }
+
+    private void write(long slot, byte[] txId, short outIndex, long amount, byte[] recipient) {
+        ByteBuffer buf = slab(slot);
+        int pos = offset(slot);
+        buf.put(pos, (byte) 1);
+        putBytes(buf, pos + TXID_OFFSET, txId);
+        buf.putShort(pos + OUTIDX_OFFSET, outIndex);
+        buf.putLong(pos + AMOUNT_OFFSET, amount);
+        putBytes(buf, pos + RECIPIENT_OFFSET, recipient);
+    }
+
+    private void copy(long from, long to) {
+        ByteBuffer src = slab(from);
+        ByteBuffer dst = slab(to);
+        int srcPos = offset(from);
+        int dstPos = offset(to);
+        for (int i = 0; i < RECORD_SIZE; i++) {
+            dst.put(dstPos + i, src.get(srcPos + i));
+        }
+    }
+
+    private ByteBuffer slab(long slot) {
+        return slabs[(int) (slot >> SLAB_SHIFT)];
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot & (SLAB_RECORDS - 1)) * RECORD_SIZE;
+    }
+
+    private static void getBytes(ByteBuffer buf, int pos, byte[] dst) {
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = buf.get(pos + i);
+        }
+    }
+
+    private static void putBytes(ByteBuffer buf, int pos, byte[] src) {
+        for (int i = 0; i < src.length; i++) {
+            buf.put(pos + i, src[i]);
+        }
+    }
+}
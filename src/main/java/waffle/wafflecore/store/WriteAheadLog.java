@@ -0,0 +1,199 @@
+package waffle.wafflecore.store;
+
+import static waffle.wafflecore.constants.Constants.*;
+import waffle.wafflecore.model.TransactionOutput;
+import waffle.wafflecore.util.ByteArrayWrapper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ *  Redo log of one UTXO flush batch.
+ *  A batch is BEGIN, the blocks connected and disconnected since last
+ *  flush, every output created or spent, then COMMIT with the new tip.
+ *  The whole batch is synced once. Only a batch with a valid COMMIT
+ *  is replayed on recovery; anything else is discarded.
+ *
+ *  Record layout:
+ *  | type (1) | length (4) | payload (length) | crc32 of type and payload (4) |
+ */
+public class WriteAheadLog {
+    private static final byte BEGIN = 1;
+    private static final byte CONNECT = 2;
+    private static final byte DISCONNECT = 3;
+    private static final byte PUT = 4;
+    private static final byte SPEND = 5;
+    private static final byte COMMIT = 6;
+
+    private File file;
+    private FileOutputStream fos;
+    private DataOutputStream out;
+
+    public static class Batch {
+        private ByteArrayWrapper tipId;
+        private ArrayList<ByteArrayWrapper> connected = new ArrayList<ByteArrayWrapper>();
+        private ArrayList<ByteArrayWrapper> disconnected = new ArrayList<ByteArrayWrapper>();
+        private ArrayList<TransactionOutput> created = new ArrayList<TransactionOutput>();
+        private ArrayList<TransactionOutput> spent = new ArrayList<TransactionOutput>();
+
+        public ByteArrayWrapper getTipId() {
+            return tipId;
+        }
+        public ArrayList<ByteArrayWrapper> getConnected() {
+            return connected;
+        }
+        public ArrayList<ByteArrayWrapper> getDisconnected() {
+            return disconnected;
+        }
+        public ArrayList<TransactionOutput> getCreated() {
+            return created;
+        }
+        public ArrayList<TransactionOutput> getSpent() {
+            return spent;
+        }
+    }
+
+    public WriteAheadLog(File file) {
+        this.file = file;
+    }
+
+    public void begin(ByteArrayWrapper tipId) throws IOException {
+        fos = new FileOutputStream(file, false);
+        out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+        write(BEGIN, tipId.getBytes());
+    }
+
+    public void connect(ByteArrayWrapper blockId) throws IOException {
+        write(CONNECT, blockId.getBytes());
+    }
+
+    public void disconnect(ByteArrayWrapper blockId) throws IOException {
+        write(DISCONNECT, blockId.getBytes());
+    }
+
+    public void put(TransactionOutput txo) throws IOException {
+        write(PUT, encode(txo));
+    }
+
+    public void spend(ByteArrayWrapper txId, short outIndex) throws IOException {
+        write(SPEND, encode(new TransactionOutput(txId, outIndex, new byte[HASH_LENGTH], 0)));
+    }
+
+    /**
+     *  Write COMMIT and sync the batch. Once this returns the batch
+     *  survives a crash.
+     */
+    public void commit(ByteArrayWrapper tipId) throws IOException {
+        write(COMMIT, tipId.getBytes());
+        out.flush();
+        fos.getChannel().force(true);
+        out.close();
+        out = null;
+    }
+
+    // Batch was applied to the table; forget it.
+    public void reset() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        new FileOutputStream(file, false).close();
+    }
+
+    /**
+     *  Committed batch left in the log, or null if there is none.
+     */
+    public Batch recover() {
+        if (!file.exists() || file.length() == 0) {
+            return null;
+        }
+
+        Batch batch = new Batch();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte type = in.readByte();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_BLOCK_SIZE) {
+                    return null;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (in.readInt() != crc(type, payload)) {
+                    return null;
+                }
+
+                switch (type) {
+                    case BEGIN:
+                        break;
+                    case CONNECT:
+                        batch.connected.add(new ByteArrayWrapper(payload));
+                        break;
+                    case DISCONNECT:
+                        batch.disconnected.add(new ByteArrayWrapper(payload));
+                        break;
+                    case PUT:
+                        batch.created.add(decode(payload));
+                        break;
+                    case SPEND:
+                        batch.spent.add(decode(payload));
+                        break;
+                    case COMMIT:
+                        batch.tipId = new ByteArrayWrapper(payload);
+                        return batch;
+                    default:
+                        return null;
+                }
+            }
+        } catch (EOFException e) {
+            // Torn batch. Its changes never reached the table.
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    private void write(byte type, byte[] payload) throws IOException {
+        out.writeByte(type);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt(crc(type, payload));
+    }
+
+    private static int crc(byte type, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(TransactionOutput txo) {
+        ByteBuffer buf = ByteBuffer.allocate(HASH_LENGTH + Short.BYTES + Long.BYTES + HASH_LENGTH);
+        buf.put(txo.getTransactionId().getBytes());
+        buf.putShort(txo.getOutIndex());
+        buf.putLong(txo.getAmount());
+        buf.put(txo.getRecipient());
+        return buf.array();
+    }
+
+    private static TransactionOutput decode(byte[] payload) {
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        byte[] txId = new byte[HASH_LENGTH];
+        buf.get(txId);
+        short outIndex = buf.getShort();
+        long amount = buf.getLong();
+        byte[] recipient = new byte[HASH_LENGTH];
+        buf.get(recipient);
+        return new TransactionOutput(new ByteArrayWrapper(txId), outIndex, recipient, amount);
+    }
+}
@@ -1,12 +1,16 @@
 package waffle.wafflecore.util;
 
 import static waffle.wafflecore.constants.Constants.*;
+import waffle.Config;
 import waffle.wafflecore.util.Hasher;
 import waffle.wafflecore.tool.SystemUtil;
 import waffle.wafflecore.model.*;
 import waffle.wafflecore.util.ByteArrayWrapper;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.HashSet;
 
@@ -54,17 +58,43 @@ public class BlockChainUtil {
         return null;
     }
 
-    public static byte[] rootHashTransactionIds(ArrayList<ByteArrayWrapper> txIds) {
-        // Using string to concat bytes.
-        String ids = "";
+    /**
+     *  Root committed to by a block with given timestamp. Blocks before the
+     *  configured activation time keep the legacy root so their ids do not
+     *  change.
+     */
+    public static byte[] rootHashTransactionIds(ArrayList<ByteArrayWrapper> txIds, long timestamp) {
+        if (usesMerkleRoot(timestamp)) {
+            return MerkleTree.computeRoot(txIds);
+        }
+        return legacyRootHashTransactionIds(txIds);
+    }
+
+    public static byte[] rootHashTransactionIds(Block block) {
+        return rootHashTransactionIds(block.getTransactionIds(), block.getTimestamp());
+    }
+
+    public static boolean usesMerkleRoot(long timestamp) {
+        return timestamp >= Config.getMerkleRootTime();
+    }
+
+    // Hash of the Base64 ids concatenated.
+    public static byte[] legacyRootHashTransactionIds(ArrayList<ByteArrayWrapper> txIds) {
+        Base64.Encoder encoder = Base64.getEncoder();
+        ByteArrayOutputStream ids = new ByteArrayOutputStream(txIds.size() * 44);
         for (ByteArrayWrapper txId : txIds) {
-            ids += txId.toString();
+            byte[] encoded = encoder.encode(txId.getBytes());
+            ids.write(encoded, 0, encoded.length);
         }
 
-        return Hasher.doubleSha256(ids.getBytes());
+        return Hasher.doubleSha256(ids.toByteArray());
     }
 
     public static byte[] toAddress(byte[] publicKey) {
         return Hasher.doubleSha256(publicKey);
     }
+
+    public static byte[] toAddress(ByteBuffer publicKey) {
+        return Hasher.sha256(Hasher.sha256(publicKey));
+    }
 }
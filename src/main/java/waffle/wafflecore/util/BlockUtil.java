@@ -1,20 +1,27 @@
 package waffle.wafflecore.util;
 
+import static waffle.wafflecore.constants.Constants.*;
 import waffle.wafflecore.model.*;
 import waffle.wafflecore.tool.SystemUtil;
 import waffle.wafflecore.util.ByteArrayWrapper;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
 import java.nio.ByteBuffer;
 import org.apache.commons.lang3.ArrayUtils;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
 
 public class BlockUtil {
     private static ObjectMapper mapper = new ObjectMapper();
     static {
         mapper.addMixIn(Block.class, BlockMixIn.class);
+        // A repeated field would leave the header hash and databind with different values.
+        mapper.enable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION);
     }
 
     public static Block deserialize(byte[] data) {
@@ -25,7 +32,23 @@ public class BlockUtil {
         try {
             block = mapper.readValue(dataStr, Block.class);
             block.setOriginal(data);
-            block.setId(computeBlockId(data));
+            block.setId(computeBlockId(block));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return block;
+    }
+
+    /**
+     *  Deserialize straight from a (possibly memory-mapped) buffer.
+     *  Original bytes are not kept.
+     */
+    public static Block deserialize(ByteBuffer data) {
+        Block block = null;
+        try {
+            block = mapper.readValue(new ByteBufferBackedInputStream(data.duplicate()), Block.class);
+            block.setId(computeBlockId(block));
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -45,6 +68,120 @@ public class BlockUtil {
         return serialized;
     }
 
+    /**
+     *  Undo data of a block: outputs spent by it, in transaction order.
+     *  | count (4) | txid (32) | outidx (2) | amount (8) | recipient (32) | ...
+     */
+    public static byte[] serializeSpentOutputs(ArrayList<TransactionOutput> txos) {
+        int recordSize = HASH_LENGTH + Short.BYTES + Long.BYTES + HASH_LENGTH;
+        ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES + txos.size() * recordSize);
+        buf.putInt(txos.size());
+        for (TransactionOutput txo : txos) {
+            buf.put(txo.getTransactionId().getBytes());
+            buf.putShort(txo.getOutIndex());
+            buf.putLong(txo.getAmount());
+            buf.put(txo.getRecipient());
+        }
+
+        return buf.array();
+    }
+
+    public static ArrayList<TransactionOutput> deserializeSpentOutputs(ByteBuffer data) {
+        ByteBuffer buf = data.duplicate();
+        int count = buf.getInt();
+        ArrayList<TransactionOutput> txos = new ArrayList<TransactionOutput>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] txId = new byte[HASH_LENGTH];
+            buf.get(txId);
+            short outIndex = buf.getShort();
+            long amount = buf.getLong();
+            byte[] recipient = new byte[HASH_LENGTH];
+            buf.get(recipient);
+            txos.add(new TransactionOutput(new ByteArrayWrapper(txId), outIndex, recipient, amount));
+        }
+
+        return txos;
+    }
+
+    /**
+     *  Block header without transactions, kept for pruned blocks.
+     *  | id (32) | previous hash (32) | difficulty (8) | nonce (8) | timestamp (8) | root hash (32) |
+     */
+    public static final int HEADER_SIZE = HASH_LENGTH * 3 + Double.BYTES + Long.BYTES * 2;
+
+    public static void serializeHeader(Block block, ByteBuffer buf) {
+        buf.put(block.getId().getBytes());
+        buf.put(block.getPreviousHash().getBytes());
+        buf.putDouble(block.getDifficulty());
+        buf.putLong(block.getNonce());
+        buf.putLong(block.getTimestamp());
+        buf.put(block.getTransactionRootHash());
+    }
+
+    public static byte[] serializeHeader(Block block) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        serializeHeader(block, buf);
+        return buf.array();
+    }
+
+    // Reads one header from buf. Returned block is compacted.
+    public static Block deserializeHeader(ByteBuffer buf) {
+        byte[] id = new byte[HASH_LENGTH];
+        byte[] prevId = new byte[HASH_LENGTH];
+        byte[] rootHash = new byte[HASH_LENGTH];
+
+        Block block = new Block();
+        buf.get(id);
+        buf.get(prevId);
+        block.setId(new ByteArrayWrapper(id));
+        block.setPreviousHash(new ByteArrayWrapper(prevId));
+        block.setDifficulty(buf.getDouble());
+        block.setNonce(buf.getLong());
+        block.setTimestamp(buf.getLong());
+        buf.get(rootHash);
+        block.setTransactionRootHash(rootHash);
+        block.compact();
+
+        return block;
+    }
+
+    /**
+     *  Deflate dictionary trained on block structure: a block holding
+     *  a coinbase and transactions with one and two inputs, all fields
+     *  zeroed. Shared keys and layout then cost almost nothing per block.
+     */
+    public static byte[] compressionDictionary() {
+        ArrayList<byte[]> txs = new ArrayList<byte[]>();
+        ArrayList<ByteArrayWrapper> txIds = new ArrayList<ByteArrayWrapper>();
+        for (int inCount = 0; inCount <= 2; inCount++) {
+            ArrayList<InEntry> inEntries = new ArrayList<InEntry>();
+            for (int i = 0; i < inCount; i++) {
+                inEntries.add(new InEntry(new ByteArrayWrapper(new byte[HASH_LENGTH]), (short) 0, new byte[32], new byte[64]));
+            }
+            ArrayList<OutEntry> outEntries = new ArrayList<OutEntry>();
+            outEntries.add(new OutEntry(new byte[HASH_LENGTH], 0));
+            outEntries.add(new OutEntry(new byte[HASH_LENGTH], 0));
+
+            Transaction tx = new Transaction();
+            tx.setTimestamp(0);
+            tx.setInEntries(inEntries);
+            tx.setOutEntries(outEntries);
+            txs.add(TransactionUtil.serialize(tx));
+            txIds.add(new ByteArrayWrapper(new byte[HASH_LENGTH]));
+        }
+
+        Block block = new Block();
+        block.setPreviousHash(new ByteArrayWrapper(new byte[HASH_LENGTH]));
+        block.setDifficulty(0);
+        block.setNonce(0);
+        block.setTimestamp(0);
+        block.setTransactionRootHash(new byte[HASH_LENGTH]);
+        block.setTransactionIds(txIds);
+        block.setTransactions(txs);
+
+        return serialize(block);
+    }
+
     public static double difficultyOf(ByteArrayWrapper hash) {
         byte[] bytes = ArrayUtils.addAll(new byte[]{ (byte)0x3F, (byte)0xF0 }, hash.getBytes());
         ByteBuffer buf = ByteBuffer.wrap(bytes);
@@ -61,20 +198,109 @@ public class BlockUtil {
         }
     }
 
+    /**
+     *  Id is the hash of the block serialized without transactions.
+     *  Only header fields are read; the parser stops once it has them all,
+     *  and transactions before or between them are skipped without parsing.
+     */
     public static ByteArrayWrapper computeBlockId(byte[] data) {
-        try {
-            Block block = mapper.readValue(data, Block.class);
-            block.setTransactions(null);
-            block.setTransactionIds(null);
+        try (JsonParser parser = mapper.getFactory().createParser(data)) {
+            return computeBlockId(parser);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    public static ByteArrayWrapper computeBlockId(ByteBuffer data) {
+        try (JsonParser parser = mapper.getFactory().createParser(new ByteBufferBackedInputStream(data.duplicate()))) {
+            return computeBlockId(parser);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     *  Id from header fields of block, whatever its transactions are.
+     */
+    public static ByteArrayWrapper computeBlockId(Block block) {
+        Block header = new Block();
+        header.setPreviousHash(block.getPreviousHash());
+        header.setDifficulty(block.getDifficulty());
+        header.setNonce(block.getNonce());
+        header.setTimestamp(block.getTimestamp());
+        header.setTransactionRootHash(block.getTransactionRootHash());
+
+        return ByteArrayWrapper.copyOf(Hasher.doubleSha256(serialize(header)));
+    }
+
+    private static final int HEADER_FIELD_COUNT = 5;
+
+    private static ByteArrayWrapper computeBlockId(JsonParser parser) throws IOException {
+        return computeBlockId(readHeader(parser));
+    }
 
-            return ByteArrayWrapper.copyOf(Hasher.doubleSha256(serialize(block)));
-        } catch(Exception e){
+    /**
+     *  Header fields of block data with id set. Transactions are not parsed,
+     *  as in computeBlockId. Returned block is compacted.
+     */
+    public static Block readHeader(ByteBuffer data) {
+        try (JsonParser parser = mapper.getFactory().createParser(new ByteBufferBackedInputStream(data.duplicate()))) {
+            Block header = readHeader(parser);
+            header.setId(computeBlockId(header));
+            header.compact();
+            return header;
+        } catch (Exception e) {
             e.printStackTrace();
         }
 
         return null;
     }
 
+    private static Block readHeader(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Block is not an object");
+        }
+
+        Block header = new Block();
+        int found = 0;
+        while (found < HEADER_FIELD_COUNT && parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            // Values are read by databind so they are coerced as in deserialize.
+            switch (name) {
+                case "prev":
+                    header.setPreviousHash(mapper.readValue(parser, ByteArrayWrapper.class));
+                    found++;
+                    break;
+                case "difficulty":
+                    header.setDifficulty(mapper.readValue(parser, double.class));
+                    found++;
+                    break;
+                case "nonce":
+                    header.setNonce(mapper.readValue(parser, long.class));
+                    found++;
+                    break;
+                case "timestamp":
+                    header.setTimestamp(mapper.readValue(parser, long.class));
+                    found++;
+                    break;
+                case "txroot":
+                    header.setTransactionRootHash(mapper.readValue(parser, byte[].class));
+                    found++;
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+
+        return header;
+    }
+
     public static final int blocksToConsiderDifficulty = 3;
     public static final int blockInterval = 30;
     public static double getNextDifficulty(ArrayList<Block> prevBlocks) {
@@ -5,7 +5,7 @@ import java.util.Base64;
 import com.fasterxml.jackson.annotation.JsonValue;
 import com.fasterxml.jackson.annotation.JsonCreator;
 
-public final class ByteArrayWrapper {
+public final class ByteArrayWrapper implements Comparable<ByteArrayWrapper> {
     private final byte[] data;
 
     public ByteArrayWrapper(byte[] data) {
@@ -46,4 +46,18 @@ public final class ByteArrayWrapper {
     public int hashCode() {
         return Arrays.hashCode(data);
     }
+
+    // Unsigned lexicographic order, so wrappers can key sorted maps.
+    @Override
+    public int compareTo(ByteArrayWrapper other) {
+        int len = Math.min(data.length, other.data.length);
+        for (int i = 0; i < len; i++) {
+            int cmp = (data[i] & 0xff) - (other.data[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+
+        return data.length - other.data.length;
+    }
 }
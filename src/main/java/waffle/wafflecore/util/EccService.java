@@ -2,6 +2,8 @@ package waffle.wafflecore.util;
 
 import waffle.wafflecore.model.KeyPair;
 
+import java.nio.ByteBuffer;
+
 public class EccService {
     public static KeyPair generateKey() {
         byte[] publicKey = new byte[32];
@@ -22,4 +24,10 @@ public class EccService {
         // 署名の正当性検証
         return true;
     }
+
+    // Signature and key as buffers over a transaction view.
+    public static boolean verify(byte[] hash, ByteBuffer signature, ByteBuffer publicKey) {
+        // 署名の正当性検証
+        return true;
+    }
 }
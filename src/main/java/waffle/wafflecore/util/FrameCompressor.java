@@ -0,0 +1,185 @@
+package waffle.wafflecore.util;
+
+import static waffle.wafflecore.constants.Constants.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *  Deflated frames for peers which announced FEATURE_DEFLATE.
+ *  A frame carries bytes which would otherwise be sent as they are: JSON
+ *  envelopes or a WireCodec frame. Each frame is deflated on its own, so
+ *  one frame can be broadcast to every peer which reads them.
+ *
+ *  Frame: | marker (1) | length (4) | inflated length (4) | deflated bytes |
+ */
+public class FrameCompressor {
+    public static final byte MARKER = (byte) 0xB2; // Not ASCII and not WireCodec.MARKER
+    private static final int HEADER_SIZE = WireCodec.FRAME_HEADER_SIZE + Integer.BYTES;
+
+    // Deflating runs on sending threads, inflating on the reading one.
+    // Sending threads come and go with the cached pool, so deflaters are
+    // pooled here instead of kept per thread. One not taken back is ended.
+    private ArrayBlockingQueue<Slot> deflaters = new ArrayBlockingQueue<Slot>(DEFLATE_POOL_SIZE);
+    private volatile boolean closed = false;
+    private Inflater inflater = new Inflater();
+    private byte[] inflateBuffer = new byte[0];
+
+    private AtomicLong framesDeflated = new AtomicLong();
+    private AtomicLong framesKept = new AtomicLong(); // not smaller once deflated
+    private AtomicLong bytesIn = new AtomicLong();
+    private AtomicLong bytesOut = new AtomicLong();
+    private AtomicLong deflateNanos = new AtomicLong();
+    private AtomicLong framesInflated = new AtomicLong();
+    private AtomicLong inflateNanos = new AtomicLong();
+
+    private static class Slot {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private byte[] buffer = new byte[0];
+    }
+
+    /**
+     *  Deflated frame holding data, or data itself if it is below
+     *  DEFLATE_FRAME_BYTES or would not get smaller.
+     */
+    public byte[] deflate(byte[] data) {
+        if (data.length < DEFLATE_FRAME_BYTES) {
+            return data;
+        }
+
+        Slot slot = deflaters.poll();
+        if (slot == null) {
+            slot = new Slot();
+        }
+        try {
+            return deflate(data, slot);
+        } finally {
+            if (closed || !deflaters.offer(slot)) {
+                slot.deflater.end();
+            } else if (closed) {
+                close();
+            }
+        }
+    }
+
+    private byte[] deflate(byte[] data, Slot slot) {
+        long start = System.nanoTime();
+        Deflater deflater = slot.deflater;
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+
+        // Output must come in under the input to be worth sending.
+        byte[] buf = slot.buffer;
+        if (buf.length < data.length) {
+            buf = new byte[data.length];
+            slot.buffer = buf;
+        }
+        int length = HEADER_SIZE;
+        while (!deflater.finished() && length < data.length) {
+            length += deflater.deflate(buf, length, data.length - length);
+        }
+
+        bytesIn.addAndGet(data.length);
+        if (!deflater.finished() || length >= data.length) {
+            framesKept.incrementAndGet();
+            bytesOut.addAndGet(data.length);
+            deflateNanos.addAndGet(System.nanoTime() - start);
+            return data;
+        }
+
+        byte[] frame = Arrays.copyOf(buf, length);
+        frame[0] = MARKER;
+        ByteBuffer.wrap(frame, 1, Integer.BYTES * 2).putInt(length - WireCodec.FRAME_HEADER_SIZE).putInt(data.length);
+
+        framesDeflated.incrementAndGet();
+        bytesOut.addAndGet(length);
+        deflateNanos.addAndGet(System.nanoTime() - start);
+        return frame;
+    }
+
+    /**
+     *  Inflate frame contents following the header into a buffer reused
+     *  by the next call. Returns the inflated length, or -1 if invalid.
+     *  Only the reading thread calls this.
+     */
+    public int inflate(byte[] data, int offset, int length) {
+        if (length < Integer.BYTES) {
+            return -1;
+        }
+        int inflatedLength = ByteBuffer.wrap(data, offset, Integer.BYTES).getInt();
+        if (inflatedLength <= 0 || inflatedLength > WireCodec.MAX_FRAME_SIZE) {
+            return -1;
+        }
+
+        long start = System.nanoTime();
+        if (inflateBuffer.length < inflatedLength) {
+            inflateBuffer = new byte[inflatedLength];
+        }
+        inflater.reset();
+        inflater.setInput(data, offset + Integer.BYTES, length - Integer.BYTES);
+        try {
+            int n = 0;
+            while (n < inflatedLength) {
+                int read = inflater.inflate(inflateBuffer, n, inflatedLength - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != inflatedLength) {
+                return -1;
+            }
+        } catch (DataFormatException e) {
+            return -1;
+        }
+
+        framesInflated.incrementAndGet();
+        inflateNanos.addAndGet(System.nanoTime() - start);
+        return inflatedLength;
+    }
+
+    /**
+     *  End pooled deflaters. Frames deflated afterwards end theirs when done.
+     */
+    public void close() {
+        closed = true;
+        Slot slot;
+        while ((slot = deflaters.poll()) != null) {
+            slot.deflater.end();
+        }
+    }
+
+    // getter
+    public byte[] getInflateBuffer() {
+        return inflateBuffer;
+    }
+    public long getFramesDeflated() {
+        return framesDeflated.get();
+    }
+    public long getFramesInflated() {
+        return framesInflated.get();
+    }
+    public long getBytesSaved() {
+        return bytesIn.get() - bytesOut.get();
+    }
+    public long getDeflateNanos() {
+        return deflateNanos.get();
+    }
+    public long getInflateNanos() {
+        return inflateNanos.get();
+    }
+
+    @Override
+    public String toString() {
+        long in = bytesIn.get();
+        return String.format("Frame compression: deflated=%d kept=%d in=%d saved=%d ratio=%.2f deflate=%.1fms inflated=%d inflate=%.1fms",
+            framesDeflated.get(), framesKept.get(), in, getBytesSaved(), in == 0 ? 1.0 : (double) bytesOut.get() / in,
+            deflateNanos.get() / 1e6, framesInflated.get(), inflateNanos.get() / 1e6);
+    }
+}
@@ -1,5 +1,6 @@
 package waffle.wafflecore.util;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -21,6 +22,19 @@ public class Hasher {
         return sha256(plain, 0, plain.length);
     }
 
+    public static byte[] sha256(ByteBuffer plain) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(plain.duplicate());
+            return md.digest();
+        } catch (Exception e) {
+            // Can't happen
+            e.printStackTrace();
+        }
+
+        return new byte[0];
+    }
+
     /**
      *  @TODO Need to consider how to implement ripemd160
      */
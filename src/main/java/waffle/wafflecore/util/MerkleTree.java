@@ -0,0 +1,166 @@
+package waffle.wafflecore.util;
+
+import static waffle.wafflecore.constants.Constants.*;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ *  Binary Merkle tree over raw transaction ids.
+ *  A node is SHA256(SHA256(left | right)). A node without a right sibling
+ *  is carried up unchanged rather than paired with itself, so a list of ids
+ *  and the same list with its last id repeated have different roots.
+ *
+ *  Levels are kept, so leaves can be appended or replaced by rehashing
+ *  only their path to the root, and proofs are read off the levels.
+ */
+public class MerkleTree {
+    private ArrayList<ArrayList<byte[]>> levels = new ArrayList<ArrayList<byte[]>>();
+
+    private static ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    public MerkleTree() {
+        levels.add(new ArrayList<byte[]>());
+    }
+
+    /**
+     *  Tree built level by level. Large levels are hashed in parallel.
+     */
+    public MerkleTree(List<ByteArrayWrapper> txIds) {
+        ArrayList<byte[]> leaves = new ArrayList<byte[]>(txIds.size());
+        for (ByteArrayWrapper txId : txIds) {
+            leaves.add(txId.getBytes());
+        }
+        levels.add(leaves);
+
+        ArrayList<byte[]> level = leaves;
+        while (level.size() > 1) {
+            level = parentLevel(level);
+            levels.add(level);
+        }
+    }
+
+    public static byte[] computeRoot(List<ByteArrayWrapper> txIds) {
+        return new MerkleTree(txIds).getRoot();
+    }
+
+    public void append(byte[] txId) {
+        ArrayList<byte[]> leaves = levels.get(0);
+        leaves.add(txId);
+        update(leaves.size() - 1);
+    }
+
+    public void replace(int index, byte[] txId) {
+        levels.get(0).set(index, txId);
+        update(index);
+    }
+
+    /**
+     *  Sibling hashes from leaf at index up to the root.
+     *  Levels where the node has no sibling contribute nothing.
+     */
+    public ArrayList<byte[]> getProof(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IllegalArgumentException();
+        }
+
+        ArrayList<byte[]> proof = new ArrayList<byte[]>();
+        for (int l = 0; l < levels.size() - 1; l++) {
+            ArrayList<byte[]> level = levels.get(l);
+            int sibling = index ^ 1;
+            if (sibling < level.size()) {
+                proof.add(level.get(sibling));
+            }
+            index >>= 1;
+        }
+
+        return proof;
+    }
+
+    /**
+     *  Whether txId is at index of a tree with count leaves and given root.
+     */
+    public static boolean verifyProof(byte[] txId, int index, int count, List<byte[]> proof, byte[] root) {
+        if (txId == null || root == null || proof == null || index < 0 || index >= count) {
+            return false;
+        }
+
+        byte[] hash = txId;
+        int used = 0;
+        for (int size = count; size > 1; size = (size + 1) / 2) {
+            if ((index ^ 1) < size) {
+                if (used >= proof.size()) {
+                    return false;
+                }
+                byte[] sibling = proof.get(used++);
+                hash = (index & 1) == 0 ? node(hash, sibling) : node(sibling, hash);
+            }
+            index >>= 1;
+        }
+
+        return used == proof.size() && Arrays.equals(hash, root);
+    }
+
+    // getter
+    public byte[] getRoot() {
+        ArrayList<byte[]> top = levels.get(levels.size() - 1);
+        return top.isEmpty() ? EMPTY_BYTES.clone() : top.get(0);
+    }
+    public int size() {
+        return levels.get(0).size();
+    }
+
+    // Rehash the path from leaf at index, growing the tree as needed.
+    private void update(int index) {
+        int l = 0;
+        while (levels.get(l).size() > 1) {
+            ArrayList<byte[]> level = levels.get(l);
+            int left = index & ~1;
+            byte[] parent = left + 1 < level.size() ? node(level.get(left), level.get(left + 1)) : level.get(left);
+
+            if (l + 1 == levels.size()) {
+                levels.add(new ArrayList<byte[]>());
+            }
+            ArrayList<byte[]> upper = levels.get(l + 1);
+            index >>= 1;
+            if (index < upper.size()) {
+                upper.set(index, parent);
+            } else {
+                upper.add(parent);
+            }
+            l++;
+        }
+    }
+
+    private static ArrayList<byte[]> parentLevel(ArrayList<byte[]> level) {
+        int count = (level.size() + 1) / 2;
+        byte[][] parents = new byte[count][];
+        IntStream indices = IntStream.range(0, count);
+        if (level.size() >= MERKLE_PARALLEL_LEAVES) {
+            indices = indices.parallel();
+        }
+        indices.forEach(i -> {
+            int left = i * 2;
+            parents[i] = left + 1 < level.size() ? node(level.get(left), level.get(left + 1)) : level.get(left);
+        });
+
+        return new ArrayList<byte[]>(Arrays.asList(parents));
+    }
+
+    private static byte[] node(byte[] left, byte[] right) {
+        MessageDigest md = digest.get();
+        md.update(left);
+        md.update(right);
+        return md.digest(md.digest());
+    }
+}
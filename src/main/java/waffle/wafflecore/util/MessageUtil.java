@@ -1,32 +1,30 @@
 package waffle.wafflecore.util;
 
+import static waffle.wafflecore.constants.Constants.*;
 import waffle.wafflecore.message.*;
+import waffle.wafflecore.message.type.InventoryMessageType;
+import waffle.wafflecore.message.type.MessageType;
 import waffle.wafflecore.tool.Logger;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.module.SimpleModule;
-import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
-import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 public class MessageUtil {
     private static Logger logger = Logger.getInstance();
     private static ObjectMapper mapper = new ObjectMapper();
-    private static SimpleModule module = new SimpleModule();
-    static {
-        module.addDeserializer(Message.class, new MessageDeserializer());
-        mapper.registerModule(module);
-    }
 
-    public static Envelope deserialize(byte[] data) {
-        String dataStr = new String(data);
+    // Decoded data blobs, reused so a blob is only copied out once.
+    private static ThreadLocal<ByteArrayOutputStream> dataBuffer = ThreadLocal.withInitial(ByteArrayOutputStream::new);
 
-        try {
-            Envelope env = mapper.readValue(data, Envelope.class);
-            return env;
+    public static Envelope deserialize(byte[] data) {
+        try (JsonParser parser = mapper.getFactory().createParser(data)) {
+            parser.nextToken();
+            return readEnvelope(parser);
         } catch (Exception e) {
             logger.log("Invalid data received.");
         }
@@ -35,11 +33,15 @@ public class MessageUtil {
     }
 
     public static Envelope[] deserializeArray(byte[] data) {
-        String dataStr = new String(data);
-
-        try {
-            Envelope[] envs = mapper.readValue(data, Envelope[].class);
-            return envs;
+        try (JsonParser parser = mapper.getFactory().createParser(data)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Not an array");
+            }
+            ArrayList<Envelope> envs = new ArrayList<Envelope>();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                envs.add(readEnvelope(parser));
+            }
+            return envs.toArray(new Envelope[envs.size()]);
         } catch (Exception e) {
             logger.log("Invalid data received.");
         }
@@ -47,6 +49,40 @@ public class MessageUtil {
         return null;
     }
 
+    /**
+     *  Envelopes written back to back from offset, as they come from a
+     *  connection, added to envs. Reading stops at length or at a non-ASCII
+     *  byte between envelopes, where no JSON text starts; such bytes inside
+     *  an envelope are read as part of it.
+     *  Returns where reading stopped. An envelope cut off at length starts
+     *  there, to be read again with more data. If data is invalid, those
+     *  before it are added and offset + length is returned.
+     */
+    public static int deserializeConcatenated(byte[] data, int offset, int length, ArrayList<Envelope> envs) {
+        int end = offset + length;
+        int pos = skipWhitespace(data, offset, end);
+        try (JsonParser parser = mapper.getFactory().createParser(data, offset, length)) {
+            try {
+                while (pos < end && data[pos] >= 0) {
+                    parser.nextToken();
+                    envs.add(readEnvelope(parser));
+                    pos = skipWhitespace(data, offset + (int) parser.getCurrentLocation().getByteOffset(), end);
+                }
+            } catch (IOException e) {
+                // Failing only where data runs out means the envelope is cut off.
+                if (parser.getCurrentLocation().getByteOffset() >= length && end - pos <= WireCodec.MAX_FRAME_SIZE) {
+                    return pos;
+                }
+                throw e;
+            }
+        } catch (Exception e) {
+            logger.log("Invalid data received.");
+            return end;
+        }
+
+        return pos;
+    }
+
     public static byte[] serialize(Envelope env) {
         byte[] serialized = null;
 
@@ -59,26 +95,101 @@ public class MessageUtil {
         return serialized;
     }
 
-    private static class MessageDeserializer extends StdDeserializer<Message> {
-        protected MessageDeserializer(){
-            this(null);
+    private static int skipWhitespace(byte[] data, int pos, int end) {
+        while (pos < end && (data[pos] == ' ' || data[pos] == '\t' || data[pos] == '\r' || data[pos] == '\n')) {
+            pos++;
         }
+        return pos;
+    }
 
-        protected MessageDeserializer(final Class<?> vc){
-            super(vc);
+    // Reads the envelope object parser is on. Payload goes straight to its
+    // type, as msgtype is written first; otherwise it is kept as a tree.
+    private static Envelope readEnvelope(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Envelope is not an object");
         }
 
-        @Override
-        public Message deserialize(final JsonParser parser, final DeserializationContext context)
-        throws IOException, JsonProcessingException {
-            final JsonNode node = parser.getCodec().readTree(parser);
-            final ObjectMapper mapper = (ObjectMapper)parser.getCodec();
-            if (node.has("invtype")) {
-                return mapper.treeToValue(node, InventoryMessage.class);
+        MessageType type = null;
+        Message payload = null;
+        JsonNode pending = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("msgtype".equals(name)) {
+                type = token == JsonToken.VALUE_NULL ? null : MessageType.valueOf(parser.getText());
+            } else if ("payload".equals(name)) {
+                if (token == JsonToken.VALUE_NULL) {
+                    payload = null;
+                } else if (type != null) {
+                    payload = readPayload(parser, type);
+                } else {
+                    pending = mapper.readTree(parser);
+                }
             } else {
-                return mapper.treeToValue(node, Hello.class);
+                parser.skipChildren();
             }
         }
+
+        if (pending != null) {
+            Class<? extends Message> cls = pending.has("invtype") ? InventoryMessage.class : Hello.class;
+            payload = mapper.treeToValue(pending, cls);
+        }
+        return new Envelope(type, payload);
+    }
+
+    private static Message readPayload(JsonParser parser, MessageType type) throws IOException {
+        switch (type) {
+            case INVENTORY:
+                return readInventoryMessage(parser);
+            default:
+                return mapper.readValue(parser, Hello.class);
+        }
+    }
+
+    // Data is decoded from base64 as it is parsed, never held as text.
+    // A block in it is left to the handler, which parses it only if new.
+    private static InventoryMessage readInventoryMessage(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Payload is not an object");
+        }
+
+        InventoryMessageType invType = null;
+        ByteArrayWrapper id = null;
+        boolean isBlock = false;
+        byte[] data = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_NULL) {
+                continue;
+            }
+
+            switch (name) {
+                case "invtype":
+                    invType = InventoryMessageType.valueOf(parser.getText());
+                    break;
+                case "id":
+                    id = ByteArrayWrapper.copyOf(parser.getBinaryValue());
+                    break;
+                case "isblock":
+                    isBlock = parser.getBooleanValue();
+                    break;
+                case "data":
+                    ByteArrayOutputStream out = dataBuffer.get();
+                    out.reset();
+                    parser.readBinaryValue(out);
+                    data = out.toByteArray();
+                    if (out.size() > MAX_BLOCK_SIZE) {
+                        dataBuffer.remove(); // Do not keep a buffer that large around.
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+
+        return new InventoryMessage(invType, id, isBlock, data);
     }
 
     // public static Message deserializeHello(byte[] data) {
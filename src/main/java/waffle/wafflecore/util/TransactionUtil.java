@@ -4,7 +4,15 @@ import waffle.wafflecore.model.*;
 import waffle.wafflecore.util.Hasher;
 import waffle.wafflecore.util.ByteArrayWrapper;
 
-import java.util.ArrayList;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 public class TransactionUtil {
@@ -28,6 +36,223 @@ public class TransactionUtil {
         return tx;
     }
 
+    /**
+     *  Transaction backed by a view, read from data in one streaming pass.
+     *  In and out entries are only built if asked for.
+     */
+    public static Transaction deserializeView(byte[] data) {
+        TransactionView view = readView(data);
+        if (view == null) {
+            return null;
+        }
+
+        Transaction tx = new Transaction(data, computeTransactionId(data), view.getTimestamp(), null, null, null);
+        tx.setView(view);
+        return tx;
+    }
+
+    /**
+     *  View read from data in one streaming pass, or null if data is not a transaction.
+     */
+    public static TransactionView readView(byte[] data) {
+        try (JsonParser parser = mapper.getFactory().createParser(data)) {
+            return readView(parser);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     *  View of tx, laid out from its entries if it was not read as one.
+     */
+    public static TransactionView viewOf(Transaction tx) {
+        TransactionView view = tx.getView();
+        if (view != null) {
+            return view;
+        }
+
+        TransactionView.Builder builder = new TransactionView.Builder();
+        builder.setTimestamp(tx.getTimestamp());
+        if (tx.getInEntries() != null) {
+            builder.setInEntriesPresent();
+            for (InEntry in : tx.getInEntries()) {
+                byte[] txId = in.getTransactionId() == null ? null : in.getTransactionId().getBytes();
+                int txIdOffset = builder.write(txId);
+                int pubOffset = builder.write(in.getPublicKey());
+                int sigOffset = builder.write(in.getSignature());
+                builder.addIn(txIdOffset, lengthOf(txId), in.getOutEntryIndex(),
+                    pubOffset, lengthOf(in.getPublicKey()), sigOffset, lengthOf(in.getSignature()));
+            }
+        }
+        if (tx.getOutEntries() != null) {
+            builder.setOutEntriesPresent();
+            for (OutEntry out : tx.getOutEntries()) {
+                int toOffset = builder.write(out.getRecipientHash());
+                builder.addOut(out.getAmount(), toOffset, lengthOf(out.getRecipientHash()));
+            }
+        }
+
+        view = builder.build();
+        tx.setView(view);
+        return view;
+    }
+
+    private static int lengthOf(byte[] bytes) {
+        return bytes == null ? -1 : bytes.length;
+    }
+
+    private static TransactionView readView(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Transaction is not an object");
+        }
+
+        TransactionView.Builder builder = new TransactionView.Builder();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            switch (name) {
+                case "timestamp":
+                    builder.setTimestamp(readLong(parser, token));
+                    break;
+                // A repeated field replaces the earlier value, as with databind.
+                case "in":
+                    builder.clearInEntries();
+                    if (readArrayStart(token)) {
+                        builder.setInEntriesPresent();
+                        while (parser.nextToken() != JsonToken.END_ARRAY) {
+                            readInEntry(parser, builder);
+                        }
+                    }
+                    break;
+                case "out":
+                    builder.clearOutEntries();
+                    if (readArrayStart(token)) {
+                        builder.setOutEntriesPresent();
+                        while (parser.nextToken() != JsonToken.END_ARRAY) {
+                            readOutEntry(parser, builder);
+                        }
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+
+        return builder.build();
+    }
+
+    private static void readInEntry(JsonParser parser, TransactionView.Builder builder) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new IOException("In-entry is not an object");
+        }
+
+        int txIdOffset = 0, txIdLength = -1;
+        int pubOffset = 0, pubLength = -1;
+        int sigOffset = 0, sigLength = -1;
+        long outIndex = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            switch (name) {
+                case "tx":
+                    txIdOffset = builder.position();
+                    txIdLength = readBytes(parser, token, builder);
+                    break;
+                case "outidx":
+                    outIndex = readLong(parser, token);
+                    if (outIndex != (short) outIndex) {
+                        throw new IOException("Out index out of range");
+                    }
+                    break;
+                case "pub":
+                    pubOffset = builder.position();
+                    pubLength = readBytes(parser, token, builder);
+                    break;
+                case "sig":
+                    sigOffset = builder.position();
+                    sigLength = readBytes(parser, token, builder);
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+
+        builder.addIn(txIdOffset, txIdLength, (short) outIndex, pubOffset, pubLength, sigOffset, sigLength);
+    }
+
+    private static void readOutEntry(JsonParser parser, TransactionView.Builder builder) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Out-entry is not an object");
+        }
+
+        int toOffset = 0, toLength = -1;
+        long amount = 0;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            switch (name) {
+                case "to":
+                    toOffset = builder.position();
+                    toLength = readBytes(parser, token, builder);
+                    break;
+                case "val":
+                    amount = readLong(parser, token);
+                    break;
+                default:
+                    parser.skipChildren();
+                    break;
+            }
+        }
+
+        builder.addOut(amount, toOffset, toLength);
+    }
+
+    private static boolean readArrayStart(JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return false;
+        }
+        if (token != JsonToken.START_ARRAY) {
+            throw new IOException("Entries are not an array");
+        }
+        return true;
+    }
+
+    // Coerced as databind does for long fields: floats are truncated, and
+    // integers may come quoted, with an empty or "null" string read as 0.
+    private static long readLong(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getLongValue(); // Throws if out of range
+            case VALUE_NULL:
+                return 0;
+            case VALUE_STRING:
+                String text = parser.getText().trim();
+                if (text.isEmpty() || "null".equals(text)) {
+                    return 0;
+                }
+                try {
+                    return Long.parseLong(text);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Not an integer");
+                }
+            default:
+                throw new IOException("Not an integer");
+        }
+    }
+
+    // Base64 decoded straight into the view. Length, or -1 for null.
+    private static int readBytes(JsonParser parser, JsonToken token, TransactionView.Builder builder) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return -1;
+        }
+        return parser.readBinaryValue(builder.bytes());
+    }
+
     public static ByteArrayWrapper computeTransactionId(byte[] data) {
         return ByteArrayWrapper.copyOf(Hasher.doubleSha256(data));
     }
@@ -44,17 +269,125 @@ public class TransactionUtil {
         return serialized;
     }
 
+    /**
+     *  JSON of view written straight from its fields, byte for byte as
+     *  serialize gives it for the same transaction.
+     */
+    public static byte[] serialize(TransactionView view) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(view.size() * 2);
+        try (JsonGenerator gen = mapper.getFactory().createGenerator(out)) {
+            writeView(gen, view, true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        return out.toByteArray();
+    }
+
     public static byte[] getTransactionSignHash(byte[] data) {
         Transaction tx = deserialize(data);
+        return tx == null ? null : computeSignHash(tx);
+    }
 
-        ArrayList<InEntry> inEntries = tx.getInEntries();
-        for (InEntry in : inEntries) {
-            in.setPublicKey(null);
-            in.setSignature(null);
+    /**
+     *  Sign hash of tx, computed once and kept on it.
+     */
+    public static byte[] getSignHash(Transaction tx) {
+        byte[] signHash = tx.getSignHash();
+        if (signHash == null) {
+            signHash = computeSignHash(tx);
+            tx.setSignHash(signHash);
         }
-        tx.setInEntries(inEntries);
+        return signHash;
+    }
+
+    private static ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /**
+     *  Double SHA-256 of tx serialized with keys and signatures of its
+     *  in-entries cleared. The JSON is generated from the view straight
+     *  into the digest, byte for byte as serialize would give it.
+     */
+    public static byte[] computeSignHash(Transaction tx) {
+        MessageDigest md = digest.get();
+        md.reset();
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                md.update((byte) b);
+            }
+            @Override
+            public void write(byte[] b, int off, int len) {
+                md.update(b, off, len);
+            }
+        };
 
-        byte[] bytes = serialize(tx);
-        return Hasher.doubleSha256(bytes);
+        TransactionView view = viewOf(tx);
+        try (JsonGenerator gen = mapper.getFactory().createGenerator(out)) {
+            writeView(gen, view, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+
+        byte[] first = md.digest();
+        return md.digest(first);
+    }
+
+    // Fields in the order databind writes them. Keys and signatures are
+    // written as null unless signed is set.
+    private static void writeView(JsonGenerator gen, TransactionView view, boolean signed) throws IOException {
+        gen.writeStartObject();
+        gen.writeNumberField("timestamp", view.getTimestamp());
+
+        gen.writeFieldName("in");
+        if (view.getInCount() < 0) {
+            gen.writeNull();
+        } else {
+            gen.writeStartArray();
+            for (int i = 0; i < view.getInCount(); i++) {
+                gen.writeStartObject();
+                gen.writeFieldName("tx");
+                writeBytes(gen, view.getInTransactionId(i));
+                gen.writeNumberField("outidx", view.getInOutIndex(i));
+                gen.writeFieldName("pub");
+                writeBytes(gen, signed ? view.getInPublicKey(i) : null);
+                gen.writeFieldName("sig");
+                writeBytes(gen, signed ? view.getInSignature(i) : null);
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+        }
+
+        gen.writeFieldName("out");
+        if (view.getOutCount() < 0) {
+            gen.writeNull();
+        } else {
+            gen.writeStartArray();
+            for (int i = 0; i < view.getOutCount(); i++) {
+                gen.writeStartObject();
+                gen.writeFieldName("to");
+                writeBytes(gen, view.getOutRecipient(i));
+                gen.writeNumberField("val", view.getOutAmount(i));
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+        }
+        gen.writeEndObject();
+    }
+
+    private static void writeBytes(JsonGenerator gen, ByteBuffer bytes) throws IOException {
+        if (bytes == null) {
+            gen.writeNull();
+        } else {
+            gen.writeBinary(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        }
     }
 }
@@ -0,0 +1,501 @@
+package waffle.wafflecore.util;
+
+import static waffle.wafflecore.constants.Constants.*;
+import waffle.wafflecore.message.*;
+import waffle.wafflecore.message.type.InventoryMessageType;
+import waffle.wafflecore.message.type.MessageType;
+import waffle.wafflecore.model.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ *  Compact binary encoding of envelopes, blocks and transactions.
+ *  Integers are varints (zigzag for signed ones), hashes are raw 32 bytes
+ *  and other byte strings are length prefixed.
+ *
+ *  JSON stays the canonical form, as ids are hashes of it. Transactions
+ *  are decoded back to the exact JSON they were made from; a block id only
+ *  hashes header fields, so blocks come back with the same fields, written
+ *  as serialize writes them. Anything else is not encoded (null is
+ *  returned) and the caller sends JSON instead.
+ *  Both sides go through the streaming parser and generator without
+ *  building objects, and a decoded block hands its transactions on as
+ *  views, so the receiver does not parse the JSON it stores.
+ *
+ *  Frame:       | marker (1) | length (4) | message type (1) | payload |
+ *  Hello:       | features | genesis (32) | peer count | peers: length utf-8 | block count | block ids (32) |
+ *  Inventory:   | type (1) | flags (1) | id (32) | data length | data |   id and data if flagged
+ *  Block:       | prev (32) | difficulty (8) | nonce | timestamp | txroot (32) | tx count | txs: id (32) length tx |
+ *  Transaction: | timestamp | in count | ins | out count | outs |
+ *  In:          | txid (32) | out index | pub length + 1 | pub | sig length + 1 | sig |   0 for null
+ *  Out:         | to (32) | amount |
+ */
+public class WireCodec {
+    public static final byte MARKER = (byte) 0xB1; // Not ASCII, so never the start of JSON
+    public static final int FRAME_HEADER_SIZE = 1 + Integer.BYTES;
+    public static final int MAX_FRAME_SIZE = MAX_BLOCK_SIZE * 2;
+
+    private static final int FLAG_BLOCK = 1;
+    private static final int FLAG_ID = 2;
+    private static final int FLAG_DATA = 4;
+
+    private static final MessageType[] MESSAGE_TYPES = MessageType.values();
+    private static final InventoryMessageType[] INVENTORY_TYPES = InventoryMessageType.values();
+
+    // Thrown while encoding something binary cannot carry exactly.
+    private static class NotEncodable extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private NotEncodable() {
+            super(null, null, false, false);
+        }
+    }
+    private static final NotEncodable NOT_ENCODABLE = new NotEncodable();
+
+    /**
+     *  Whole frame for env, or null if it has to go as JSON.
+     */
+    public static byte[] encode(Envelope env) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MARKER);
+        writeInt(out, 0); // length, set below
+        try {
+            out.write(env.getMessageType().ordinal());
+            if (env.getPayload() instanceof Hello) {
+                encodeHello((Hello) env.getPayload(), out);
+            } else if (env.getPayload() instanceof InventoryMessage) {
+                encodeInventory((InventoryMessage) env.getPayload(), out);
+            } else {
+                return null;
+            }
+        } catch (NotEncodable e) {
+            return null;
+        }
+
+        byte[] frame = out.toByteArray();
+        ByteBuffer.wrap(frame, 1, Integer.BYTES).putInt(frame.length - FRAME_HEADER_SIZE);
+        return frame;
+    }
+
+    /**
+     *  Envelope from frame contents following the header, or null if invalid.
+     *  Block and transaction data come back as JSON bytes.
+     */
+    public static Envelope decode(ByteBuffer buf) {
+        try {
+            MessageType type = MESSAGE_TYPES[buf.get()];
+            Message payload;
+            switch (type) {
+                case HELLO:
+                    payload = decodeHello(buf);
+                    break;
+                case INVENTORY:
+                    payload = decodeInventory(buf);
+                    break;
+                default:
+                    return null;
+            }
+            if (buf.hasRemaining()) {
+                return null;
+            }
+            return new Envelope(type, payload);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static void encodeHello(Hello hello, ByteArrayOutputStream out) throws NotEncodable {
+        writeVarLong(out, hello.getFeatures());
+        writeHash(out, hello.getGenesisId());
+        ArrayList<String> peers = hello.getMyPeers() == null ? new ArrayList<String>() : hello.getMyPeers();
+        writeVarLong(out, peers.size());
+        for (String peer : peers) {
+            writeBytes(out, peer.getBytes(StandardCharsets.UTF_8));
+        }
+        ArrayList<ByteArrayWrapper> blocks = hello.getKnownBlocks() == null ? new ArrayList<ByteArrayWrapper>() : hello.getKnownBlocks();
+        writeVarLong(out, blocks.size());
+        for (ByteArrayWrapper id : blocks) {
+            writeHash(out, id);
+        }
+    }
+
+    private static Hello decodeHello(ByteBuffer buf) {
+        int features = (int) readVarLong(buf);
+        ByteArrayWrapper genesisId = readHash(buf);
+        int peerCount = readCount(buf);
+        ArrayList<String> peers = new ArrayList<String>(peerCount);
+        for (int i = 0; i < peerCount; i++) {
+            peers.add(new String(readBytes(buf), StandardCharsets.UTF_8));
+        }
+        int blockCount = readCount(buf);
+        ArrayList<ByteArrayWrapper> blocks = new ArrayList<ByteArrayWrapper>(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            blocks.add(readHash(buf));
+        }
+
+        Hello hello = new Hello(peers, genesisId, blocks);
+        hello.setFeatures(features);
+        return hello;
+    }
+
+    private static void encodeInventory(InventoryMessage msg, ByteArrayOutputStream out) throws NotEncodable {
+        ByteBuffer data = msg.getDataBuffer();
+        int flags = (msg.getIsBlock() ? FLAG_BLOCK : 0) |
+            (msg.getObjectId() != null ? FLAG_ID : 0) |
+            (data != null ? FLAG_DATA : 0);
+
+        out.write(msg.getInventoryMessageType().ordinal());
+        out.write(flags);
+        if (msg.getObjectId() != null) {
+            writeHash(out, msg.getObjectId());
+        }
+        if (data != null) {
+            byte[] json = new byte[data.remaining()];
+            data.get(json);
+            byte[] encoded = msg.getIsBlock() ? encodeBlock(json) : encodeTransaction(json);
+            if (encoded == null) {
+                throw NOT_ENCODABLE;
+            }
+            writeBytes(out, encoded);
+        }
+    }
+
+    private static InventoryMessage decodeInventory(ByteBuffer buf) {
+        InventoryMessageType type = INVENTORY_TYPES[buf.get()];
+        int flags = buf.get();
+        boolean isBlock = (flags & FLAG_BLOCK) != 0;
+        ByteArrayWrapper id = (flags & FLAG_ID) != 0 ? readHash(buf) : null;
+        if ((flags & FLAG_DATA) == 0) {
+            return new InventoryMessage(type, id, isBlock, null);
+        }
+
+        ByteBuffer encoded = readSlice(buf);
+        if (!isBlock) {
+            return new InventoryMessage(type, id, false, decodeTransaction(encoded));
+        }
+        ArrayList<Transaction> parsed = new ArrayList<Transaction>();
+        Block block = readBlock(encoded, parsed);
+        InventoryMessage msg = new InventoryMessage(type, id, true, block.getOriginal());
+        msg.setBlock(block);
+        msg.setTransactions(parsed);
+        return msg;
+    }
+
+    /**
+     *  Binary form of block JSON, or null if its fields are not laid out as
+     *  serialize writes them or a transaction would not decode to the same bytes.
+     */
+    public static byte[] encodeBlock(byte[] json) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length / 2);
+        try (JsonParser parser = TransactionUtil.mapper.getFactory().createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            writeHash(out, readBinaryField(parser, "prev"));
+            if (nextField(parser, "difficulty") != JsonToken.VALUE_NUMBER_FLOAT) {
+                return null;
+            }
+            writeLong(out, Double.doubleToRawLongBits(parser.getDoubleValue()));
+            writeVarLong(out, zigzag(readLongField(parser, "nonce")));
+            writeVarLong(out, zigzag(readLongField(parser, "timestamp")));
+            writeHash(out, readBinaryField(parser, "txroot"));
+
+            ArrayList<byte[]> txIds = new ArrayList<byte[]>();
+            if (nextField(parser, "txids") != JsonToken.START_ARRAY) {
+                return null;
+            }
+            while (parser.nextToken() == JsonToken.VALUE_STRING) {
+                txIds.add(parser.getBinaryValue());
+            }
+            if (parser.currentToken() != JsonToken.END_ARRAY) {
+                return null;
+            }
+
+            // Ids go as they are; checkBlock compares them with the transactions.
+            writeVarLong(out, txIds.size());
+            if (nextField(parser, "txs") != JsonToken.START_ARRAY) {
+                return null;
+            }
+            for (byte[] txId : txIds) {
+                if (parser.nextToken() != JsonToken.VALUE_STRING) {
+                    return null;
+                }
+                writeHash(out, txId);
+                byte[] encoded = encodeTransaction(parser.getBinaryValue());
+                if (encoded == null) {
+                    return null;
+                }
+                writeBytes(out, encoded);
+            }
+            if (parser.nextToken() != JsonToken.END_ARRAY ||
+                parser.nextToken() != JsonToken.END_OBJECT ||
+                parser.nextToken() != null)
+            {
+                return null;
+            }
+        } catch (IOException | NotEncodable e) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    // Value token of the next field, which has to be name.
+    private static JsonToken nextField(JsonParser parser, String name) throws IOException, NotEncodable {
+        if (parser.nextToken() != JsonToken.FIELD_NAME || !name.equals(parser.getCurrentName())) {
+            throw NOT_ENCODABLE;
+        }
+        return parser.nextToken();
+    }
+
+    private static byte[] readBinaryField(JsonParser parser, String name) throws IOException, NotEncodable {
+        if (nextField(parser, name) != JsonToken.VALUE_STRING) {
+            throw NOT_ENCODABLE;
+        }
+        return parser.getBinaryValue();
+    }
+
+    private static long readLongField(JsonParser parser, String name) throws IOException, NotEncodable {
+        if (nextField(parser, name) != JsonToken.VALUE_NUMBER_INT) {
+            throw NOT_ENCODABLE;
+        }
+        return parser.getLongValue(); // Throws if out of range
+    }
+
+    /**
+     *  Block JSON from its binary form.
+     */
+    public static byte[] decodeBlock(ByteBuffer buf) {
+        return readBlock(buf, null).getOriginal();
+    }
+
+    // Block as deserialize gives it: id set and JSON bytes as original.
+    // Its transactions are added to parsed as views, if it is given.
+    private static Block readBlock(ByteBuffer buf, ArrayList<Transaction> parsed) {
+        Block block = new Block();
+        block.setPreviousHash(readHash(buf));
+        block.setDifficulty(Double.longBitsToDouble(buf.getLong()));
+        block.setNonce(unzigzag(readVarLong(buf)));
+        block.setTimestamp(unzigzag(readVarLong(buf)));
+        block.setTransactionRootHash(readHash(buf).getBytes());
+
+        int count = readCount(buf);
+        ArrayList<byte[]> txs = new ArrayList<byte[]>(count);
+        ArrayList<ByteArrayWrapper> txIds = new ArrayList<ByteArrayWrapper>(count);
+        for (int i = 0; i < count; i++) {
+            txIds.add(readHash(buf));
+            TransactionView view = readView(readSlice(buf));
+            byte[] tx = TransactionUtil.serialize(view);
+            txs.add(tx);
+            if (parsed != null) {
+                Transaction parsedTx = new Transaction(tx, TransactionUtil.computeTransactionId(tx), view.getTimestamp(), null, null, null);
+                parsedTx.setView(view);
+                parsed.add(parsedTx);
+            }
+        }
+        block.setTransactionIds(txIds);
+        block.setTransactions(txs);
+        block.setOriginal(BlockUtil.serialize(block));
+        block.setId(BlockUtil.computeBlockId(block));
+        return block;
+    }
+
+    /**
+     *  Binary form of transaction JSON, or null if it would not decode to the same bytes.
+     */
+    public static byte[] encodeTransaction(byte[] json) {
+        TransactionView view = TransactionUtil.readView(json);
+        if (view == null || view.getInCount() < 0 || view.getOutCount() < 0 ||
+            !Arrays.equals(TransactionUtil.serialize(view), json))
+        {
+            return null;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(json.length / 2);
+        try {
+            writeVarLong(out, zigzag(view.getTimestamp()));
+            writeVarLong(out, view.getInCount());
+            for (int i = 0; i < view.getInCount(); i++) {
+                writeHash(out, view.getInTransactionId(i));
+                writeVarLong(out, zigzag(view.getInOutIndex(i)));
+                writeNullableBytes(out, view.getInPublicKey(i));
+                writeNullableBytes(out, view.getInSignature(i));
+            }
+            writeVarLong(out, view.getOutCount());
+            for (int i = 0; i < view.getOutCount(); i++) {
+                writeHash(out, view.getOutRecipient(i));
+                writeVarLong(out, zigzag(view.getOutAmount(i)));
+            }
+        } catch (NotEncodable e) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     *  Transaction JSON from its binary form.
+     */
+    public static byte[] decodeTransaction(ByteBuffer buf) {
+        return TransactionUtil.serialize(readView(buf));
+    }
+
+    private static TransactionView readView(ByteBuffer buf) {
+        TransactionView.Builder builder = new TransactionView.Builder();
+        builder.setTimestamp(unzigzag(readVarLong(buf)));
+
+        builder.setInEntriesPresent();
+        int inCount = readCount(buf);
+        for (int i = 0; i < inCount; i++) {
+            int txIdOffset = readInto(buf, HASH_LENGTH, builder);
+            short outIndex = (short) unzigzag(readVarLong(buf));
+            int pubLength = readCount(buf) - 1;
+            int pubOffset = readInto(buf, pubLength, builder);
+            int sigLength = readCount(buf) - 1;
+            int sigOffset = readInto(buf, sigLength, builder);
+            builder.addIn(txIdOffset, HASH_LENGTH, outIndex, pubOffset, pubLength, sigOffset, sigLength);
+        }
+
+        builder.setOutEntriesPresent();
+        int outCount = readCount(buf);
+        for (int i = 0; i < outCount; i++) {
+            int toOffset = readInto(buf, HASH_LENGTH, builder);
+            builder.addOut(unzigzag(readVarLong(buf)), toOffset, HASH_LENGTH);
+        }
+
+        return builder.build();
+    }
+
+    // Encoding helpers.
+    private static void writeHash(ByteArrayOutputStream out, ByteArrayWrapper hash) throws NotEncodable {
+        if (hash == null || hash.size() != HASH_LENGTH) {
+            throw NOT_ENCODABLE;
+        }
+        out.write(hash.getBytes(), 0, HASH_LENGTH);
+    }
+
+    private static void writeHash(ByteArrayOutputStream out, byte[] hash) throws NotEncodable {
+        writeHash(out, hash == null ? null : new ByteArrayWrapper(hash));
+    }
+
+    private static void writeHash(ByteArrayOutputStream out, ByteBuffer hash) throws NotEncodable {
+        if (hash == null || hash.remaining() != HASH_LENGTH) {
+            throw NOT_ENCODABLE;
+        }
+        out.write(hash.array(), hash.arrayOffset() + hash.position(), HASH_LENGTH);
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        writeVarLong(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeNullableBytes(ByteArrayOutputStream out, byte[] bytes) {
+        if (bytes == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        writeVarLong(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeNullableBytes(ByteArrayOutputStream out, ByteBuffer bytes) {
+        if (bytes == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        writeVarLong(out, bytes.remaining() + 1);
+        out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            out.write(value >>> shift);
+        }
+    }
+
+    private static void writeLong(ByteArrayOutputStream out, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    public static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    // Decoding helpers. Malformed input ends in a runtime exception.
+    private static ByteArrayWrapper readHash(ByteBuffer buf) {
+        byte[] hash = new byte[HASH_LENGTH];
+        buf.get(hash);
+        return new ByteArrayWrapper(hash);
+    }
+
+    private static byte[] readBytes(ByteBuffer buf) {
+        byte[] bytes = new byte[readCount(buf)];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    // Length prefixed bytes as a buffer over buf.
+    private static ByteBuffer readSlice(ByteBuffer buf) {
+        int length = readCount(buf);
+        ByteBuffer slice = buf.slice();
+        slice.limit(length);
+        buf.position(buf.position() + length);
+        return slice;
+    }
+
+
+    // Copies length bytes into the view's byte strings, nothing for -1 (null).
+    // Offset they start at.
+    private static int readInto(ByteBuffer buf, int length, TransactionView.Builder builder) {
+        int offset = builder.position();
+        if (length > 0) {
+            if (length > buf.remaining()) {
+                throw new IllegalArgumentException();
+            }
+            builder.bytes().write(buf.array(), buf.arrayOffset() + buf.position(), length);
+            buf.position(buf.position() + length);
+        }
+        return offset;
+    }
+
+    // Counts and lengths can never exceed what is left to read.
+    private static int readCount(ByteBuffer buf) {
+        long count = readVarLong(buf);
+        if (count < 0 || count > buf.remaining() + 1) {
+            throw new IllegalArgumentException();
+        }
+        return (int) count;
+    }
+
+    public static long readVarLong(ByteBuffer buf) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException();
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}